@@ -0,0 +1,118 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads 64 MiB from an in-process HTTP server over loopback with {@link Downloader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(2)
+public class DownloadBenchmark {
+
+	private static final int SIZE = 64 * Scratch.MEBIBYTE;
+
+	@Param({ "1", "4" })
+	public int connections;
+
+	private byte[] data;
+	private HttpServer server;
+	private ExecutorService executor;
+	private URL url;
+	private Path file;
+
+	@Setup
+	public void setUp() throws IOException {
+		Scratch.silence();
+
+		data = new byte[SIZE];
+		new Random(1).nextBytes(data);
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", this::serve);
+		server.start();
+
+		url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/artifact");
+		file = Files.createTempFile(Main.SHORT_NAME + "_bench", null);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		server.stop(0);
+		executor.shutdownNow();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public void download(Blackhole blackhole) throws IOException {
+		Downloader downloader = new Downloader(url, connections, Settings.getSegmentSize());
+		blackhole.consume(downloader.download(file));
+	}
+
+	/**
+	 * Serves the data with support for HEAD and single byte ranges.
+	 */
+	private void serve(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		exchange.getResponseHeaders().set("ETag", "\"benchmark\"");
+
+		int start = 0;
+		int end = data.length;
+		int code = 200;
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=")) {
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			start = Integer.parseInt(bounds[0]);
+			if (!bounds[1].isEmpty()) end = Math.min(end, Integer.parseInt(bounds[1]) + 1);
+
+			code = 206;
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + data.length);
+		}
+
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set("Content-Length", Integer.toString(end - start));
+			exchange.sendResponseHeaders(code, -1);
+			exchange.close();
+			return;
+		}
+
+		exchange.sendResponseHeaders(code, end - start);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(data, start, end - start);
+		}
+	}
+
+}
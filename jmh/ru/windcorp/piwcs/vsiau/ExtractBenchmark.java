@@ -0,0 +1,105 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Unpacks synthetic modpacks with {@link ActionInstall#unpackZipFile(Path)}: many small entries or
+ * few large ones, stored or deflated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(2)
+public class ExtractBenchmark {
+
+	/**
+	 * Entry count x entry size in bytes.
+	 */
+	@Param({ "5000x4096", "4x16777216" })
+	public String shape;
+
+	@Param({ "false", "true" })
+	public boolean deflate;
+
+	private Path zip;
+
+	@Setup
+	public void setUp() throws IOException {
+		Scratch.silence();
+
+		String[] dimensions = shape.split("x");
+		zip = Files.createTempFile(Main.SHORT_NAME + "_bench", ".zip");
+		writeZip(zip, Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), deflate);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(zip);
+	}
+
+	@TearDown(Level.Invocation)
+	public void clean() throws IOException {
+		Scratch.deleteRecursively(Paths.get("bench"));
+	}
+
+	@Benchmark
+	public void extract(Blackhole blackhole) throws IOException, AbortException {
+		ActionInstall.unpackZipFile(zip);
+		blackhole.consume(Files.size(Paths.get("bench", "dir0", "file0.jar")));
+	}
+
+	/**
+	 * Writes entries filled with bytes of 16 distinct values so that deflate has something to do.
+	 */
+	private static void writeZip(Path file, int count, int size, boolean deflate) throws IOException {
+		Random random = new Random(2);
+		byte[] data = new byte[size];
+
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+			zip.setMethod(deflate ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED);
+
+			for (int i = 0; i < count; ++i) {
+				for (int j = 0; j < size; ++j) data[j] = (byte) random.nextInt(16);
+
+				ZipEntry entry = new ZipEntry("bench/dir" + (i % 50) + "/file" + i + ".jar");
+				if (!deflate) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setSize(size);
+					entry.setCompressedSize(size);
+					entry.setCrc(crc.getValue());
+				}
+
+				zip.putNextEntry(entry);
+				zip.write(data);
+				zip.closeEntry();
+			}
+		}
+	}
+
+}
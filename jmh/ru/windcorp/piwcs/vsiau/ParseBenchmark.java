@@ -0,0 +1,88 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parses update programs as text, in compiled form from a heap buffer and in compiled form from a
+ * direct buffer, as when the program is mapped from the patch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(2)
+public class ParseBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int instructions;
+
+	private String text;
+	private byte[] compiled;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setUp() throws IOException, AbortException {
+		Scratch.silence();
+
+		text = generateProgram(instructions);
+		compiled = ProgramCompiler.compile(new StringReader(text));
+
+		direct = ByteBuffer.allocateDirect(compiled.length);
+		direct.put(compiled).flip();
+	}
+
+	@Benchmark
+	public void text(Blackhole blackhole) throws IOException, AbortException {
+		blackhole.consume(new ActionUpdate.Program(new StringReader(text), null));
+	}
+
+	@Benchmark
+	public void compiled(Blackhole blackhole) throws IOException, AbortException {
+		blackhole.consume(new ActionUpdate.Program(ByteBuffer.wrap(compiled), null));
+	}
+
+	@Benchmark
+	public void mapped(Blackhole blackhole) throws IOException, AbortException {
+		blackhole.consume(new ActionUpdate.Program(direct.duplicate(), null));
+	}
+
+	/**
+	 * Produces a program similar to generated patches: many files in a few directories.
+	 */
+	private static String generateProgram(int instructions) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("1\n1.0.0\n1.0.1\n");
+
+		for (int i = 0; i < instructions; ++i) {
+			String path = (i % 3 == 0 ? "config/sub" + (i % 50) : "mods/lib" + (i % 20)) + "/file" + i + ".jar";
+
+			if (i % 10 == 0) {
+				sb.append("Delete; ").append(path);
+			} else {
+				sb.append("Extract; ").append("entries/").append(i).append("; ").append(path);
+			}
+
+			sb.append('\n');
+		}
+
+		return sb.toString();
+	}
+
+}
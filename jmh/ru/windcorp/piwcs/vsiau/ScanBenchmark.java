@@ -0,0 +1,63 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Finds the installed version with {@link Action#findInstalledVersion(Path)} in a marker directory
+ * that also holds other files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(2)
+public class ScanBenchmark {
+
+	@Param({ "10", "10000" })
+	public int files;
+
+	@Setup
+	public void setUp() throws IOException {
+		Scratch.silence();
+
+		Path markers = Paths.get("mods", "1.7.10");
+		Scratch.deleteRecursively(Paths.get("mods"));
+		Files.createDirectories(markers);
+
+		for (int i = 0; i < files; ++i) {
+			Files.createFile(markers.resolve("library" + i + ".jar"));
+		}
+		Files.createFile(markers.resolve("PIWCS 1.0.0.txt"));
+		Files.createFile(markers.resolve("PIWCS 1.0.1.txt"));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Scratch.deleteRecursively(Paths.get("mods"));
+	}
+
+	@Benchmark
+	public void scan(Blackhole blackhole) throws IOException, AbortException {
+		blackhole.consume(Action.findInstalledVersion(Paths.get("")));
+	}
+
+}
@@ -0,0 +1,53 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks. The benchmarks unpack and scan relative to the working
+ * directory just like the actions they measure; the {@code jmh} task runs them in a scratch
+ * directory.
+ */
+class Scratch {
+
+	static final int MEBIBYTE = 1024 * 1024;
+
+	/**
+	 * The code under test logs every file; keeps that out of the JMH output.
+	 */
+	static void silence() {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// Discard
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// Discard
+			}
+		}));
+	}
+
+	static void deleteRecursively(Path dir) throws IOException {
+		if (Files.notExists(dir)) return;
+
+		List<Path> paths;
+		try (Stream<Path> stream = Files.walk(dir)) {
+			paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toCollection(ArrayList::new));
+		}
+
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writes files with {@link WriteStrategy} under each write buffer size, preallocation and
+ * durability setting: few large files one after another, as a hard disk prefers, or many small
+ * files at once, as a solid-state drive prefers. The results mostly reflect the page cache except
+ * with {@code file} and {@code batch} durability.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(2)
+public class WriteBenchmark {
+
+	/**
+	 * File count x file size in bytes x threads.
+	 */
+	@Param({ "4x16777216x1", "2000x16384x4" })
+	public String shape;
+
+	@Param({ "8", "1024" })
+	public int writeBufferKiB;
+
+	@Param({ "off", "on" })
+	public String preallocate;
+
+	@Param({ "none", "file", "batch" })
+	public String durability;
+
+	private int count;
+	private byte[] data;
+	private ExecutorService executor;
+
+	@Setup
+	public void setUp() {
+		Scratch.silence();
+
+		String[] dimensions = shape.split("x");
+		count = Integer.parseInt(dimensions[0]);
+		data = new byte[Integer.parseInt(dimensions[1])];
+		new Random(3).nextBytes(data);
+
+		Settings.parse(new String[] {
+				"--write-buffer", Integer.toString(writeBufferKiB),
+				"--preallocate", preallocate,
+				"--durability", durability,
+		});
+
+		executor = Workers.newPool(Integer.parseInt(dimensions[2]), "bench");
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@TearDown(Level.Invocation)
+	public void clean() throws IOException {
+		Scratch.deleteRecursively(Paths.get("bench"));
+	}
+
+	@Benchmark
+	public void write(Blackhole blackhole) throws IOException, AbortException {
+		List<Future<Long>> futures = new ArrayList<>();
+
+		for (int i = 0; i < count; ++i) {
+			Path file = Paths.get("bench", "dir" + (i % 50), "file" + i + ".jar");
+
+			futures.add(executor.submit(() -> {
+				Files.createDirectories(file.getParent());
+				return WriteStrategy.write(file, data.length, Channels.newChannel(new ByteArrayInputStream(data)));
+			}));
+		}
+
+		for (Future<Long> future : futures) {
+			blackhole.consume(Workers.await(future));
+		}
+
+		WriteStrategy.sync();
+	}
+
+}
@@ -1,16 +1,37 @@
 package ru.windcorp.piwcs.vsiau;
 
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.net.URL;
-import java.net.URLConnection;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public abstract class Action {
+	
+	private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+	
+	protected static final String MANIFEST_PATH = "pages/piwcs/latest_manifest/";
 
 	private final String name;
 
@@ -24,49 +45,409 @@ public abstract class Action {
 		return name;
 	}
 	
-	protected static Path download(String path) throws IOException {
-		URL source = new URL("http://windcorp.ru/" + path);
-
-		Path destination = Files.createTempFile(Main.SHORT_NAME + "__", null);
-		destination.toFile().deleteOnExit();
-
-		URLConnection connection = source.openConnection();
+	/**
+	 * @return {@code true} if this action operates on the installations given by
+	 * {@link Settings#getTargets()} rather than on the working directory
+	 */
+	public boolean supportsTargets() {
+		return false;
+	}
+	
+	/**
+	 * @return the paths of the artifacts that this action downloads with {@link #download(String)}
+	 * in any case; the GUI starts downloading them while the user is choosing an action
+	 */
+	public List<String> getPrefetchPaths() {
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * An operation on a single installation.
+	 */
+	@FunctionalInterface
+	protected interface TargetTask {
+		/**
+		 * @param root the installation directory
+		 * @param threads the number of threads the operation may use
+		 * @return a short description of the outcome
+		 */
+		String run(Path root, int threads) throws IOException, AbortException;
+	}
+	
+	/**
+	 * Runs an operation on several installations concurrently and prints the outcome for each one.
+	 * A failure in one installation does not stop the others. The worker threads are divided
+	 * between the installations that are processed at the same time. Each installation prefixes
+	 * its output with its root and flushes only its own files to disk.
+	 */
+	protected static void runOnTargets(List<Path> targets, TargetTask task) throws AbortException {
+		int concurrent = Math.min(targets.size(), Settings.getThreads());
+		int threads = Math.max(1, Settings.getThreads() / concurrent);
 		
-		try (
-				ReadableByteChannel sourceChannel =
-						Channels.newChannel(connection.getInputStream());
-		) {
+		String[] outcomes = new String[targets.size()];
+		int failed = 0;
 		
-			try (
-					FileOutputStream destStream =
-							new FileOutputStream(destination.toFile());
-					FileChannel destChannel =
-							destStream.getChannel();
-			) {
-				
-				final long step = 1024 * 1024 * 8; // Mebibyte
-				final long size = connection.getContentLengthLong();
-				
-				System.out.println("Downloading " + source + " to " + destination + "...");
-				
-				long position = 0;
-				while (true) {
-					long transferred = destChannel.transferFrom(sourceChannel, position, step);
-					
-					if (transferred == 0) break;
-					else position += transferred;
-					
-					System.out.printf("  %-2d / %s MiB%n",
-							(position - 1) / step + 1,
-							(size >= 0) ? Long.toString((size - 1) / step + 1) : "?");
+		boolean prefixed = targets.size() > 1;
+		PrintStream out = System.out;
+		if (prefixed) {
+			System.setOut(new PrintStream(new TargetOutputStream(out), true));
+		}
+		
+		ExecutorService executor = Workers.newPool(concurrent, "target");
+		try {
+			List<Future<String>> futures = new ArrayList<>();
+			for (Path root : targets) {
+				futures.add(executor.submit(() -> {
+					if (prefixed) TargetOutputStream.setTarget(root);
+					WriteStrategy.isolate(true);
+					try {
+						return task.run(root, threads);
+					} finally {
+						WriteStrategy.isolate(false);
+						TargetOutputStream.setTarget(null);
+					}
+				}));
+			}
+			
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					outcomes[i] = Workers.await(futures.get(i));
+				} catch (AbortException e) {
+					outcomes[i] = "aborted: " + e.getMessage();
+					failed++;
+				} catch (IOException | RuntimeException e) {
+					e.printStackTrace();
+					outcomes[i] = "failed: " + e;
+					failed++;
 				}
+			}
+		} finally {
+			executor.shutdownNow();
+			System.setOut(out);
+		}
+		
+		System.out.println();
+		System.out.println("Summary:");
+		for (int i = 0; i < targets.size(); ++i) {
+			String root = targets.get(i).toString();
+			System.out.println("  " + (root.isEmpty() ? "." : root) + ": " + outcomes[i]);
+		}
+		
+		if (failed > 0) {
+			throw new AbortException(failed + " of " + targets.size() + " installations failed, see the summary above");
+		}
+	}
+	
+	/**
+	 * @return the URL of an artifact at the fastest server
+	 */
+	protected static URL getSource(String path) throws IOException {
+		return new URL(Mirrors.getBest(path) + path);
+	}
+	
+	/**
+	 * @return the URLs of an artifact at all servers, fastest first
+	 */
+	protected static List<URL> getSources(String path) throws IOException {
+		List<URL> result = new ArrayList<>();
+		for (String server : Mirrors.getServers(path)) {
+			result.add(new URL(server + path));
+		}
+		return result;
+	}
+	
+	/**
+	 * Opens the artifact for reading while it is being downloaded. Nothing is stored on disk.
+	 */
+	protected static InputStream openStream(String path) throws IOException {
+		URL source = getSource(path);
+		System.out.println("Streaming " + source + "...");
+		return source.openStream();
+	}
+	
+	/**
+	 * Downloads an artifact. If a checksum is published for it, the download is verified; the hash
+	 * is computed while the file is being downloaded whenever possible.
+	 */
+	protected static Path download(String path) throws IOException, AbortException {
+		Future<?> prefetched = Prefetch.take(path);
+		
+		Metrics.Phase.DOWNLOAD.begin();
+		try {
+			if (prefetched != null) {
+				// The rest of the download resumes from what was fetched in the background
+				System.out.println("Waiting for background download of " + getSource(path) + "...");
 				
-				System.out.printf("Download complete (%.2f MiB)%n", size / (float) step);
+				try {
+					Workers.await(prefetched);
+				} catch (IOException e) {
+					System.out.println("Background download failed (" + e + ")");
+				}
+			}
+			
+			return downloadArtifact(path);
+		} finally {
+			Metrics.Phase.DOWNLOAD.end();
+		}
+	}
+	
+	/**
+	 * Downloads the first segments of an artifact, one per connection, into the file that
+	 * {@link #download(String)} resumes. Nothing is fetched if the artifact is already being
+	 * downloaded.
+	 */
+	static void prefetch(String path) throws IOException {
+		List<URL> sources = getSources(path);
+		URL canonical = new URL(Settings.getServer() + path);
+		
+		Path staging = Settings.getPartialDirectory();
+		Files.createDirectories(staging);
+		
+		String key = getFileName(canonical);
+		
+		Metrics.Phase.DOWNLOAD.begin();
+		try (
+				FileChannel lockChannel = FileChannel.open(staging.resolve(key + ".lock"),
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+				FileLock lock = tryLock(lockChannel);
+		) {
+			if (lock == null) return;
+			
+			ArtifactCache.Entry cached = new ArtifactCache(Settings.getCacheDirectory(), Settings.getCacheSize())
+					.get(canonical);
+			
+			System.out.println("Downloading the beginning of " + sources.get(0) + " in the background...");
+			createDownloader(sources, cached).prefetch(
+					staging.resolve(key + ".part"), staging.resolve(key + ".properties"),
+					Settings.getSegmentCount() * Settings.getSegmentSize());
+		} finally {
+			Metrics.Phase.DOWNLOAD.end();
+		}
+	}
+	
+	private static Path downloadArtifact(String path) throws IOException, AbortException {
+		List<URL> sources = getSources(path);
+		URL source = sources.get(0);
+		String expected = fetchChecksum(path);
+		
+		// Artifacts are stored under their URL at the first server given, whichever mirror they come from
+		URL canonical = new URL(Settings.getServer() + path);
+		
+		Path staging = Settings.getPartialDirectory();
+		Files.createDirectories(staging);
+		
+		String key = getFileName(canonical);
+		
+		// Another process may be downloading the same artifact, e.g. for another installation
+		try (
+				FileChannel lockChannel = FileChannel.open(staging.resolve(key + ".lock"),
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+				FileLock lock = tryLock(lockChannel);
+		) {
+			if (lock != null) {
+				return downloadArtifact(sources, expected, canonical,
+						staging.resolve(key + ".part"), staging.resolve(key + ".properties"));
+			}
 			
+			System.out.println("Another download of " + source + " is in progress, downloading separately");
+			Path partial = Files.createTempFile(staging, Main.SHORT_NAME + "__", ".part");
+			try {
+				return downloadArtifact(sources, expected, canonical, partial, null);
+			} finally {
+				Files.deleteIfExists(partial);
 			}
 		}
+	}
+	
+	/**
+	 * @return the lock, or {@code null} if another process or thread holds it
+	 */
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @param cached the cached copy of the artifact to validate against, or {@code null}
+	 */
+	private static Downloader createDownloader(List<URL> sources, ArtifactCache.Entry cached) {
+		Downloader downloader = new Downloader(sources, Settings.getSegmentCount(), Settings.getSegmentSize());
+		downloader.setMinSpeed(Settings.getMinSpeed());
+		if (cached != null) {
+			downloader.setValidators(cached.getEtag(), cached.getLastModified());
+		}
+		return downloader;
+	}
+	
+	/**
+	 * @param sidecar the progress record of the partial file, or {@code null} if the download
+	 * cannot be resumed
+	 */
+	private static Path downloadArtifact(List<URL> sources, String expected, URL canonical,
+			Path partial, Path sidecar) throws IOException, AbortException {
+		URL source = sources.get(0);
+		Path staging = Settings.getPartialDirectory();
 		
+		ArtifactCache cache = new ArtifactCache(Settings.getCacheDirectory(), Settings.getCacheSize());
+		ArtifactCache.Entry cached = cache.get(canonical);
+
+		Downloader downloader = createDownloader(sources, cached);
+
+		Path destination = Files.createTempFile(staging, Main.SHORT_NAME + "__", null);
+		destination.toFile().deleteOnExit();
+
+		System.out.println("Downloading " + source + " to " + partial + "...");
+
+		if (!downloader.download(partial, sidecar)) {
+			System.out.println("Not modified on server, using cached copy " + cached.getData());
+			cache.copy(cached, destination);
+			
+			try {
+				verify(source, destination, cached.getSha256(), expected);
+			} catch (AbortException e) {
+				cache.remove(cached);
+				throw e;
+			}
+			
+			return destination;
+		}
+		
+		Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING);
+		String sha256 = verify(source, destination, downloader.getSha256(), expected);
+		cache.store(canonical, destination, downloader.getEtag(), downloader.getLastModified(), sha256);
+
 		return destination;
 	}
+	
+	/**
+	 * Fetches the SHA-256 published for an artifact at {@code <path>_sha256/}. Only the first word
+	 * of the file is used, so the output of {@code sha256sum} is accepted.
+	 * @return the hash in hex or {@code null} if none is published
+	 */
+	protected static String fetchChecksum(String path) throws IOException, AbortException {
+		String checksumPath = (path.endsWith("/") ? path.substring(0, path.length() - 1) : path) + "_sha256/";
+		URL source = getSource(checksumPath);
+		
+		String line;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(source.openStream(), StandardCharsets.UTF_8))) {
+			line = reader.readLine();
+		} catch (FileNotFoundException e) {
+			System.out.println("No checksum published for " + getSource(path) + ", its integrity will not be checked");
+			return null;
+		}
+		
+		String hash = (line == null) ? "" : line.trim().split("\\s+", 2)[0].toLowerCase();
+		if (!SHA256.matcher(hash).matches()) {
+			throw new AbortException("Malformed checksum " + source);
+		}
+		
+		return hash;
+	}
+	
+	/**
+	 * Checks a downloaded file against its published checksum. The file is only read again if its
+	 * hash was not computed during the download.
+	 * @param actual the hash of the file if it is known, or {@code null}
+	 * @return the hash of the file, or {@code null} if it is not known and was not needed
+	 */
+	private static String verify(URL source, Path file, String actual, String expected) throws IOException, AbortException {
+		if (expected == null) return actual;
+		
+		if (actual == null) {
+			System.out.println("Verifying " + source + "...");
+			actual = Hashing.sha256(file);
+		}
+		
+		try {
+			Hashing.check("Downloaded file " + source, actual, expected);
+		} catch (AbortException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		
+		return actual;
+	}
+	
+	/**
+	 * Finds the installed version of the modpack in the working directory by its marker file.
+	 */
+	protected static String findInstalledVersion() throws IOException, AbortException {
+		return findInstalledVersion(Paths.get(""));
+	}
+	
+	/**
+	 * Finds the installed version of the modpack by its marker file.
+	 * @param root the installation directory
+	 */
+	protected static String findInstalledVersion(Path root) throws IOException, AbortException {
+		Path markerPath = root.resolve("mods").resolve("1.7.10");
+		
+		if (!Files.isDirectory(markerPath)) {
+			throw new AbortException("PIWCS modpack not installed: directory \"" + markerPath + "\" not found");
+		}
+		
+		Pattern regex = Pattern.compile("PIWCS \\d+\\.\\d+\\.\\d+\\.txt");
+		
+		List<String> markers;
+		try (Stream<Path> paths = Files.list(markerPath)) {
+			markers = paths.map(Path::getFileName)
+				.map(Path::toString)
+				.filter(regex.asPredicate())
+				.map(s -> s.substring("PIWCS ".length(), s.length() - ".txt".length()))
+				.collect(Collectors.toCollection(ArrayList::new));
+		}
+		
+		if (markers.isEmpty()) {
+			throw new AbortException("PIWCS modpack not installed: no version marker found in \"" + markerPath + "\"");
+		}
+		
+		markers.sort(Comparator.reverseOrder());
+		String marker = markers.get(0);
+		
+		if (markers.size() > 1)
+			System.out.println("Found modpack version markers " + markers + ", assuming " + marker);
+		else
+			System.out.println("Found modpack version marker " + marker);
+		
+		return marker;
+	}
+	
+	/**
+	 * Writes the version marker once everything written before has reached the disk, so that an
+	 * installation with the marker is complete even after a power failure.
+	 */
+	protected static void updateMarker(String version) throws IOException {
+		WriteStrategy.sync();
+		writeMarker(getMarkerPath(version));
+		WriteStrategy.sync();
+	}
+	
+	protected static Path getMarkerPath(String version) {
+		return Paths.get("mods", "1.7.10", "PIWCS " + version + ".txt");
+	}
+	
+	protected static void writeMarker(Path file) throws IOException {
+		ByteBuffer contents = ByteBuffer.wrap(
+				(
+						"Модпак PIWCS. Обновлено автоматически при помощи " +
+						Main.NAME + " " + Main.VERSION + "."
+				).getBytes(StandardCharsets.UTF_8)
+		);
+		
+		WriteStrategy.write(file, contents.remaining(), channel -> {
+			long written = 0;
+			while (contents.hasRemaining()) {
+				written += channel.write(contents, written);
+			}
+			return written;
+		});
+	}
+	
+	static String getFileName(URL source) {
+		return source.toString().replaceAll("[^A-Za-z0-9._-]", "_");
+	}
 
 }
@@ -1,39 +1,136 @@
 package ru.windcorp.piwcs.vsiau;
 
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 public class ActionInstall extends Action {
 	
+	private static final String MODPACK_PATH = "pages/piwcs/latest/";
+	private static final Pattern MARKER = Pattern.compile("mods/1\\.7\\.10/PIWCS (\\d+\\.\\d+\\.\\d+)\\.txt");
+	
+	/**
+	 * The downloaded modpack and its manifest, which is only fetched once however many
+	 * installations the modpack is unpacked into.
+	 */
+	private static class Modpack {
+		private final Path file;
+		
+		private boolean manifestRead = false;
+		private Manifest manifest = null;
+		
+		public Modpack(Path file) {
+			this.file = file;
+		}
+		
+		/**
+		 * @param version the version of the unpacked modpack, or {@code null} if it is not known
+		 */
+		public synchronized Manifest getManifest(String version) throws IOException, AbortException {
+			if (!manifestRead) {
+				manifest = readManifest(version);
+				manifestRead = true;
+			}
+			
+			return manifest;
+		}
+	}
+	
 	public ActionInstall() {
 		super("Install");
 	}
+	
+	@Override
+	public boolean supportsTargets() {
+		return true;
+	}
+	
+	/**
+	 * A streamed install never downloads the modpack into a file.
+	 */
+	@Override
+	public List<String> getPrefetchPaths() {
+		if (Settings.isStreaming() && Settings.getTargets().size() == 1) {
+			return Collections.emptyList();
+		}
+		
+		return Collections.singletonList(MODPACK_PATH);
+	}
 
+	/**
+	 * Downloads the modpack once and unpacks it into every installation given by
+	 * {@link Settings#getTargets()}.
+	 */
 	@Override
 	public void run() throws IOException, AbortException {
-		checkDirectories();
-		Path zipFile = downloadZipFile();
-		unpackZipFile(zipFile);
+		List<Path> targets = Settings.getTargets();
+		
+		if (targets.size() == 1) {
+			Path root = targets.get(0);
+			checkDirectories(root);
+			
+			if (!Settings.isStreaming() || !streamModpack(root)) {
+				unpackModpack(new Modpack(downloadZipFile()), root, Settings.getThreads());
+			}
+			
+			WriteStrategy.sync();
+			return;
+		}
+		
+		if (Settings.isStreaming()) {
+			System.out.println("Cannot unpack the modpack into several installations while downloading it, "
+					+ "downloading it in full");
+		}
+		
+		Modpack modpack = new Modpack(downloadZipFile());
+		
+		System.out.println("Installing into " + targets.size() + " installations...");
+		
+		runOnTargets(targets, (root, threads) -> {
+			checkDirectories(root);
+			unpackModpack(modpack, root, threads);
+			WriteStrategy.sync();
+			return "installed";
+		});
 	}
 
-	private static void checkDirectories() throws IOException, AbortException {
-		System.out.println("Checking installation directory...");
+	private static void checkDirectories(Path root) throws IOException, AbortException {
+		System.out.println("Checking installation directory" + (root.toString().isEmpty() ? "" : " " + root) + "...");
 		
-		checkDirectory(getConfigPath());
-		checkDirectory(getModsPath());
-		checkDirectory(getModsVersionPath());
+		if (!root.toString().isEmpty() && Files.notExists(root)) {
+			System.out.println(root + " does not exist, creating one");
+			Files.createDirectories(root);
+		}
+		
+		checkDirectory(getConfigPath(root));
+		checkDirectory(getModsPath(root));
+		checkDirectory(getModsVersionPath(root));
 	}
 	
 	private static void checkDirectory(Path dir) throws IOException, AbortException {
@@ -53,57 +150,385 @@ public class ActionInstall extends Action {
 		}
 	}
 
-	private static Path getConfigPath() {
-		return Paths.get("config");
+	private static Path getConfigPath(Path root) {
+		return root.resolve("config");
 	}
 	
-	private static Path getModsPath() {
-		return Paths.get("mods");
+	private static Path getModsPath(Path root) {
+		return root.resolve("mods");
 	}
 	
-	private static Path getModsVersionPath() {
-		return getModsPath().resolve("1.7.10");
+	private static Path getModsVersionPath(Path root) {
+		return getModsPath(root).resolve("1.7.10");
 	}
 
-	private static Path downloadZipFile() throws IOException {
+	private static Path downloadZipFile() throws IOException, AbortException {
 		System.out.println("Downloading modpack...");
-		return download("pages/piwcs/latest/");
+		return download(MODPACK_PATH);
+	}
+	
+	/**
+	 * Unpacks the modpack as it arrives.
+	 * @return {@code false} if the modpack has to be downloaded in full
+	 */
+	private static boolean streamModpack(Path root) throws IOException, AbortException {
+		System.out.println("Downloading and unpacking modpack...");
+		
+		try (InputStream input = new BufferedInputStream(openStream(MODPACK_PATH))) {
+			if (!Archive.isZip(input)) {
+				Map<Path, String> hashes = new LinkedHashMap<>();
+				Map<Path, byte[]> markers = unpackTar(Archive.openTar(input), root, hashes);
+				
+				checkHashes(hashes, readManifest(findVersion(markers.keySet())));
+				writeMarkers(root, markers);
+				return true;
+			}
+			
+			return streamZipFile(input, root);
+		}
+	}
+	
+	/**
+	 * Unpacks a ZIP archive using the local headers of the entries.
+	 * @return {@code false} if the archive cannot be read without its central directory
+	 */
+	private static boolean streamZipFile(InputStream input, Path root) throws IOException, AbortException {
+		Metrics.Phase.EXTRACT.begin();
+		try (ZipInputStream zip = new ZipInputStream(input)) {
+			boolean empty = true;
+			Map<Path, String> hashes = new LinkedHashMap<>();
+			Map<Path, byte[]> markers = new LinkedHashMap<>();
+			
+			for (ZipEntry e = zip.getNextEntry(); e != null; e = zip.getNextEntry()) {
+				empty = false;
+				
+				if (e.getName().endsWith("/")) {
+					// Is a directory
+					continue;
+				}
+				
+				System.out.println("Unpacking " + e.getName());
+				
+				Path path = getPath(e);
+				
+				MessageDigest digest = Hashing.newSha256();
+				
+				if (getVersion(path) != null) {
+					byte[] contents = readAll(zip);
+					markers.put(path, contents);
+					digest.update(contents);
+				} else {
+					if (path.getNameCount() > 1)
+						Files.createDirectories(root.resolve(path.subpath(0, path.getNameCount() - 1)));
+					
+					long size = WriteStrategy.write(root.resolve(path), e.getSize(),
+							Hashing.digesting(Channels.newChannel(zip), digest));
+					Metrics.Phase.EXTRACT.add(size, 1);
+				}
+				
+				hashes.put(path, Hashing.toHex(digest.digest()));
+			}
+			
+			if (empty) {
+				throw new ZipException("no entries found");
+			}
+			
+			checkHashes(hashes, readManifest(findVersion(markers.keySet())));
+			writeMarkers(root, markers);
+			return true;
+		} catch (ZipException e) {
+			System.out.println("Cannot unpack the modpack while downloading it (" + e.getMessage() + "), "
+					+ "downloading it in full");
+			return false;
+		} finally {
+			Metrics.Phase.EXTRACT.end();
+		}
 	}
 
-	private static void unpackZipFile(Path zipFile) throws IOException {
+	static void unpackZipFile(Path zipFile) throws IOException, AbortException {
+		unpackModpack(new Modpack(zipFile), Paths.get(""), Settings.getThreads());
+	}
+	
+	/**
+	 * Unpacks the modpack into an installation.
+	 * @param root the installation directory
+	 * @param threads the number of threads to unpack files with
+	 */
+	private static void unpackModpack(Modpack modpack, Path root, int threads) throws IOException, AbortException {
 		System.out.println("Unpacking modpack...");
-		try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+		
+		if (!Archive.isZip(modpack.file)) {
+			unpackTarFile(modpack, root);
+			return;
+		}
+		
+		try (Archive.Zip archive = new Archive.Zip(modpack.file)) {
+			ZipFile zip = archive.getZipFile();
+			
+			Manifest manifest = modpack.getManifest(findVersion(zip));
+			
+			List<String> descriptions = new ArrayList<>();
+			List<Workers.Task> tasks = new ArrayList<>();
+			List<String> markerDescriptions = new ArrayList<>();
+			List<Workers.Task> markerTasks = new ArrayList<>();
+			Set<Path> directories = new TreeSet<>();
+			Map<Path, Long> crcs = new HashMap<>();
 		
 			for (ZipEntry e : Collections.list(zip.entries())) {
-				install(e, zip);
+				if (e.getName().endsWith("/")) {
+					// Is a directory
+					continue;
+				}
+				
+				Path path = getPath(e);
+				
+				if (path.getNameCount() > 1)
+					directories.add(path.subpath(0, path.getNameCount() - 1));
+				
+				Manifest.FileInfo expected = (manifest == null) ? null : manifest.get(Manifest.toString(path));
+				
+				// Version markers are only written once everything else has been unpacked and verified
+				boolean marker = getVersion(path) != null;
+				(marker ? markerDescriptions : descriptions).add("Unpacking " + e.getName());
+				(marker ? markerTasks : tasks).add(() -> install(e, root.resolve(path), archive, expected));
+				if (e.getCrc() >= 0) crcs.put(path, e.getCrc());
+				Metrics.Phase.EXTRACT.expect(Math.max(0, e.getSize()), 1);
+			}
+			
+			Metrics.Phase.EXTRACT.begin();
+			try {
+				for (Path directory : directories) {
+					Files.createDirectories(root.resolve(directory));
+				}
+				
+				Workers.run(descriptions, tasks, threads);
+				
+				WriteStrategy.sync();
+				Workers.run(markerDescriptions, markerTasks, 1);
+			} finally {
+				Metrics.Phase.EXTRACT.end();
+			}
+			
+			recordStates(root, crcs);
+		}
+	}
+	
+	/**
+	 * Creates the file state index so that the first update does not rewrite unchanged files.
+	 */
+	private static void recordStates(Path root, Map<Path, Long> crcs) throws IOException {
+		FileStates states = FileStates.load(root);
+		
+		for (Map.Entry<Path, Long> entry : crcs.entrySet()) {
+			states.record(entry.getKey(), entry.getValue());
+		}
+		
+		states.save();
+	}
+	
+	/**
+	 * Unpacks a tar archive. Its entries can only be read one after another, so they are unpacked
+	 * as they are decompressed and checked against the manifest afterwards.
+	 */
+	private static void unpackTarFile(Modpack modpack, Path root) throws IOException, AbortException {
+		Map<Path, String> hashes = new LinkedHashMap<>();
+		Map<Path, byte[]> markers;
+		
+		try (InputStream input = Files.newInputStream(modpack.file)) {
+			markers = unpackTar(Archive.openTar(input), root, hashes);
+		}
+		
+		checkHashes(hashes, modpack.getManifest(findVersion(markers.keySet())));
+		writeMarkers(root, markers);
+	}
+	
+	/**
+	 * Checks unpacked files against the manifest.
+	 * @param manifest the manifest, or {@code null} to check nothing
+	 */
+	private static void checkHashes(Map<Path, String> hashes, Manifest manifest) throws AbortException {
+		if (manifest == null) return;
+		
+		for (Map.Entry<Path, String> entry : hashes.entrySet()) {
+			Manifest.FileInfo expected = manifest.get(Manifest.toString(entry.getKey()));
+			
+			if (expected != null) {
+				Hashing.check("Unpacked file " + entry.getKey(), entry.getValue(), expected.getSha256());
 			}
+		}
+	}
+	
+	/**
+	 * Unpacks the files of a tar archive as they are decompressed. Version markers are not written
+	 * but returned, so that they can be written once the other files have been verified.
+	 * @param hashes the map to put the SHA-256 of every unpacked file into
+	 * @return the contents of the version markers
+	 */
+	private static Map<Path, byte[]> unpackTar(TarReader tar, Path root, Map<Path, String> hashes) throws IOException {
+		Map<Path, byte[]> markers = new LinkedHashMap<>();
 		
+		Metrics.Phase.EXTRACT.begin();
+		try {
+			while (tar.next()) {
+				if (tar.isDirectory()) continue;
+				
+				System.out.println("Unpacking " + tar.getName());
+				
+				Path path = getPath(tar.getName());
+				
+				if (getVersion(path) != null) {
+					byte[] contents = readAll(tar.getInputStream());
+					markers.put(path, contents);
+					
+					MessageDigest digest = Hashing.newSha256();
+					digest.update(contents);
+					hashes.put(path, Hashing.toHex(digest.digest()));
+					continue;
+				}
+				
+				if (path.getNameCount() > 1)
+					Files.createDirectories(root.resolve(path.subpath(0, path.getNameCount() - 1)));
+				
+				MessageDigest digest = Hashing.newSha256();
+				
+				try (
+						ReadableByteChannel inputChannel = Hashing.digesting(
+								Channels.newChannel(tar.getInputStream()), digest);
+				) {
+					long size = WriteStrategy.write(root.resolve(path), tar.getSize(), inputChannel);
+					Metrics.Phase.EXTRACT.add(size, 1);
+				}
+				
+				hashes.put(path, Hashing.toHex(digest.digest()));
+			}
+		} finally {
+			Metrics.Phase.EXTRACT.end();
 		}
+		
+		return markers;
 	}
-
-	private static void install(ZipEntry e, ZipFile zip) throws IOException {
-		if (e.getName().endsWith("/")) {
-			// Is a directory
-			return;
+	
+	/**
+	 * Writes version markers held back by {@link #unpackTar(TarReader, Path, Map)} or
+	 * {@link #streamZipFile(InputStream, Path)}, after the files written before them have reached
+	 * the disk.
+	 */
+	private static void writeMarkers(Path root, Map<Path, byte[]> markers) throws IOException {
+		if (markers.isEmpty()) return;
+		
+		WriteStrategy.sync();
+		
+		for (Map.Entry<Path, byte[]> marker : markers.entrySet()) {
+			Path path = root.resolve(marker.getKey());
+			Files.createDirectories(path.getParent());
+			
+			byte[] contents = marker.getValue();
+			WriteStrategy.write(path, contents.length, Channels.newChannel(new ByteArrayInputStream(contents)));
+			Metrics.Phase.EXTRACT.add(contents.length, 1);
 		}
+	}
+	
+	/**
+	 * Reads the rest of a stream; only used for version markers, which are small.
+	 */
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
 		
-		System.out.println("Unpacking " + e.getName());
+		for (int read; (read = input.read(buffer)) >= 0; ) {
+			output.write(buffer, 0, read);
+		}
 		
-		Path path = Paths.get(e.getName());
+		return output.toByteArray();
+	}
+	
+	/**
+	 * @return the version of the modpack given by its version marker, or {@code null} if there is none
+	 */
+	private static String findVersion(ZipFile zip) {
+		for (ZipEntry e : Collections.list(zip.entries())) {
+			String version = getVersion(getPath(e));
+			if (version != null) return version;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @return the version of the modpack given by the first version marker among the paths, or
+	 * {@code null} if there is none
+	 */
+	private static String findVersion(Collection<Path> paths) {
+		for (Path path : paths) {
+			String version = getVersion(path);
+			if (version != null) return version;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @return the version if the path is a version marker, or {@code null}
+	 */
+	private static String getVersion(Path path) {
+		Matcher matcher = MARKER.matcher(Manifest.toString(path));
+		return matcher.matches() ? matcher.group(1) : null;
+	}
+	
+	/**
+	 * Fetches the manifest of the modpack so that unpacked files can be checked against it.
+	 * @param version the version of the unpacked modpack, or {@code null} if it is not known
+	 * @return the manifest, or {@code null} if it is not published or describes another version
+	 */
+	private static Manifest readManifest(String version) throws IOException, AbortException {
+		if (version == null) {
+			System.out.println("Modpack version marker not found, unpacked files will not be checked");
+			return null;
+		}
+		
+		System.out.println("Downloading manifest...");
+		
+		Manifest manifest;
+		try {
+			manifest = Manifest.read(download(MANIFEST_PATH));
+		} catch (FileNotFoundException e) {
+			System.out.println("Manifest not published, unpacked files will not be checked");
+			return null;
+		}
+		
+		if (!manifest.getVersion().equals(version)) {
+			System.out.println("Manifest describes version " + manifest.getVersion() + " instead of "
+					+ version + ", unpacked files will not be checked");
+			return null;
+		}
+		
+		return manifest;
+	}
+	
+	private static Path getPath(ZipEntry e) {
+		return getPath(e.getName());
+	}
+	
+	private static Path getPath(String name) {
+		Path path = Paths.get(name);
 		
 		if (path.getNameCount() > 1 && path.getName(0).toString().startsWith("PIWCS"))
 			path = path.subpath(1, path.getNameCount());
 		
-		if (path.getNameCount() > 1)
-			Files.createDirectories(path.subpath(0, path.getNameCount() - 1));
+		return path;
+	}
+
+	/**
+	 * @param expected the manifest entry to check the file against while it is written, or {@code null}
+	 */
+	private static void install(ZipEntry e, Path path, Archive archive, Manifest.FileInfo expected) throws IOException, AbortException {
+		MessageDigest digest = (expected == null) ? null : Hashing.newSha256();
+		
+		long size = archive.extract(e.getName(), path, digest);
+		Metrics.Phase.EXTRACT.add(size, 1);
 		
-		try (
-				InputStream inputStream = zip.getInputStream(e);
-				ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
-				FileOutputStream outputStream = new FileOutputStream(path.toFile());
-				FileChannel outputChannel = outputStream.getChannel();
-		) {
-			outputChannel.transferFrom(inputChannel, 0, Long.MAX_VALUE);
+		if (digest != null) {
+			Hashing.check("Unpacked file " + path, Hashing.toHex(digest.digest()), expected.getSha256());
 		}
 	}
 
@@ -0,0 +1,390 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a caching mirror of the modpack server for a local network. Clients use it with
+ * {@code --server http://<host>:<port>/}; the mirror itself downloads from the server given by
+ * {@code --server}.
+ * <p>
+ * Every artifact is fetched from upstream once and revalidated at most once per
+ * {@value #REVALIDATE_INTERVAL} ms, however many clients request it. Responses support HEAD, single
+ * byte ranges and conditional requests, so clients download in segments and use their caches as
+ * usual. File contents are sent with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} so that the kernel copies them to the socket.
+ */
+public class ActionServe extends Action {
+
+	private static final long REVALIDATE_INTERVAL = 60 * 1000;
+	private static final int IDLE_TIMEOUT = 30 * 1000;
+	private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	/**
+	 * The mirrored copy of an upstream artifact. Refreshes are synchronized on the artifact so that
+	 * concurrent requests wait for a single upstream download.
+	 */
+	private static class Artifact {
+		private final URL source;
+		private final Path data;
+		private final Path info;
+
+		private long checked = 0;
+		private boolean missing = false;
+
+		Artifact(URL source, Path directory) {
+			this.source = source;
+
+			String key = getFileName(source);
+			this.data = directory.resolve(key + ".bin");
+			this.info = directory.resolve(key + ".properties");
+		}
+
+		/**
+		 * @return the mirrored file, or {@code null} if the artifact does not exist upstream
+		 */
+		synchronized Path get() throws IOException {
+			if (System.currentTimeMillis() - checked >= REVALIDATE_INTERVAL) {
+				try {
+					refresh();
+					missing = false;
+				} catch (FileNotFoundException e) {
+					missing = true;
+				} catch (IOException e) {
+					if (!Files.isRegularFile(data)) throw e;
+					System.out.println("Could not revalidate " + source + " (" + e + "), serving the mirrored copy");
+				}
+
+				checked = System.currentTimeMillis();
+			}
+
+			return missing ? null : data;
+		}
+
+		private void refresh() throws IOException {
+			Downloader downloader = new Downloader(source, Settings.getSegmentCount(), Settings.getSegmentSize());
+
+			Properties properties = new Properties();
+			if (Files.isRegularFile(data) && Files.isRegularFile(info)) {
+				try (Reader reader = Files.newBufferedReader(info, StandardCharsets.UTF_8)) {
+					properties.load(reader);
+				}
+				downloader.setValidators(properties.getProperty("etag"), properties.getProperty("last-modified"));
+			}
+
+			Path partial = data.resolveSibling(data.getFileName() + ".part");
+			Path sidecar = data.resolveSibling(data.getFileName() + ".part.properties");
+
+			if (!downloader.download(partial, sidecar)) {
+				return;
+			}
+
+			Files.deleteIfExists(info);
+			Files.move(partial, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			properties.clear();
+			if (downloader.getEtag() != null) properties.setProperty("etag", downloader.getEtag());
+			if (downloader.getLastModified() != null) properties.setProperty("last-modified", downloader.getLastModified());
+
+			try (Writer writer = Files.newBufferedWriter(info, StandardCharsets.UTF_8)) {
+				properties.store(writer, Main.NAME + " mirror entry for " + source);
+			}
+
+			System.out.println("Mirrored " + source + " (" + Files.size(data) + " bytes)");
+		}
+	}
+
+	private static class Request {
+		String method;
+		String target;
+		String version;
+		final Map<String, String> headers = new HashMap<>();
+	}
+
+	private final Map<String, Artifact> artifacts = new ConcurrentHashMap<>();
+
+	public ActionServe() {
+		super("Serve");
+	}
+
+	@Override
+	public void run() throws IOException, AbortException {
+		Path directory = Settings.getMirrorDirectory();
+		Files.createDirectories(directory);
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(Settings.getPort()));
+		} catch (BindException e) {
+			server.close();
+			throw new AbortException("Cannot listen on port " + Settings.getPort() + ": " + e.getMessage());
+		}
+
+		ExecutorService executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, Main.SHORT_NAME + " client");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		System.out.println("Mirroring " + getSource("") + " into " + directory);
+		System.out.println("Listening on port " + Settings.getPort() + ". "
+				+ "Run clients with --server http://<this host>:" + Settings.getPort() + "/");
+
+		try {
+			while (true) {
+				SocketChannel client = server.accept();
+				executor.execute(() -> serve(client, directory));
+			}
+		} finally {
+			executor.shutdownNow();
+			server.close();
+		}
+	}
+
+	private void serve(SocketChannel client, Path directory) {
+		String address = String.valueOf(client.socket().getRemoteSocketAddress());
+
+		try (SocketChannel channel = client) {
+			Socket socket = channel.socket();
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+
+			InputStream input = new BufferedInputStream(socket.getInputStream());
+
+			while (true) {
+				Request request = readRequest(input);
+				if (request == null || !respond(channel, request, directory, address)) break;
+			}
+		} catch (SocketTimeoutException e) {
+			// Idle keep-alive connection
+		} catch (IOException e) {
+			System.out.println("Connection with " + address + " failed: " + e);
+		}
+	}
+
+	/**
+	 * @return the request, or {@code null} if the client closed the connection
+	 */
+	private static Request readRequest(InputStream input) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int matched = 0;
+
+		while (matched < 4) {
+			int b = input.read();
+			if (b < 0) {
+				if (header.size() == 0) return null;
+				throw new IOException("Connection closed in the middle of a request");
+			}
+
+			header.write(b);
+			if (header.size() > MAX_HEADER_SIZE) throw new IOException("Request header is too large");
+
+			matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+		}
+
+		String[] lines = new String(header.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) throw new IOException("Malformed request line \"" + lines[0] + "\"");
+
+		Request request = new Request();
+		request.method = requestLine[0];
+		request.target = requestLine[1];
+		request.version = requestLine[2];
+
+		for (int i = 1; i < lines.length; ++i) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+			}
+		}
+
+		return request;
+	}
+
+	/**
+	 * @return {@code true} if the connection should be kept open for another request
+	 */
+	private boolean respond(SocketChannel channel, Request request, Path directory, String address) throws IOException {
+		boolean keepAlive = request.version.equals("HTTP/1.1")
+				&& !"close".equalsIgnoreCase(request.headers.get("connection"));
+
+		boolean head = request.method.equals("HEAD");
+		if (!head && !request.method.equals("GET")) {
+			sendStatus(channel, 405, "Method Not Allowed", keepAlive);
+			return keepAlive;
+		}
+
+		String path = request.target.startsWith("/") ? request.target.substring(1) : request.target;
+		if (path.contains("?") || !path.startsWith("pages/") || path.contains("..")) {
+			sendStatus(channel, 404, "Not Found", keepAlive);
+			return keepAlive;
+		}
+
+		URL source = getSource(path);
+		Artifact artifact = artifacts.computeIfAbsent(getFileName(source), key -> new Artifact(source, directory));
+
+		Path data;
+		try {
+			data = artifact.get();
+		} catch (IOException e) {
+			System.out.println("Could not fetch " + source + ": " + e);
+			sendStatus(channel, 502, "Bad Gateway", keepAlive);
+			return keepAlive;
+		}
+
+		if (data == null) {
+			sendStatus(channel, 404, "Not Found", keepAlive);
+			return keepAlive;
+		}
+
+		try (FileChannel file = FileChannel.open(data, StandardOpenOption.READ)) {
+			BasicFileAttributes attributes = Files.readAttributes(data, BasicFileAttributes.class);
+			long size = file.size();
+			long modified = attributes.lastModifiedTime().toMillis();
+
+			String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+			String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+
+			StringBuilder headers = new StringBuilder();
+			headers.append("Accept-Ranges: bytes\r\n");
+			headers.append("ETag: ").append(etag).append("\r\n");
+			headers.append("Last-Modified: ").append(lastModified).append("\r\n");
+
+			if (etag.equals(request.headers.get("if-none-match"))
+					|| (!request.headers.containsKey("if-none-match")
+							&& lastModified.equals(request.headers.get("if-modified-since")))) {
+				sendHeaders(channel, 304, "Not Modified", headers, -1, keepAlive);
+				return keepAlive;
+			}
+
+			long start = 0;
+			long end = size;
+			int code = 200;
+			String reason = "OK";
+
+			String range = request.headers.get("range");
+			String ifRange = request.headers.get("if-range");
+			if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+				long[] bounds = parseRange(range, size);
+
+				if (bounds == null) {
+					headers.append("Content-Range: bytes */").append(size).append("\r\n");
+					sendHeaders(channel, 416, "Range Not Satisfiable", headers, 0, keepAlive);
+					return keepAlive;
+				}
+
+				if (bounds.length == 2) {
+					start = bounds[0];
+					end = bounds[1];
+					code = 206;
+					reason = "Partial Content";
+					headers.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+							.append('/').append(size).append("\r\n");
+				}
+			}
+
+			headers.append("Content-Type: application/octet-stream\r\n");
+			sendHeaders(channel, code, reason, headers, end - start, keepAlive);
+
+			if (!head) {
+				for (long position = start; position < end; ) {
+					long count = file.transferTo(position, end - position, channel);
+					if (count <= 0) throw new IOException("Could not send " + data);
+					position += count;
+				}
+			}
+
+			System.out.println(address + " " + request.method + " " + path + " " + code + " " + (end - start));
+		}
+
+		return keepAlive;
+	}
+
+	/**
+	 * Parses a Range header with a single byte range.
+	 * @return the start and the end of the range, exclusive; an empty array if the header is not
+	 * supported and the whole file should be sent; or {@code null} if the range cannot be satisfied
+	 */
+	private static long[] parseRange(String range, long size) {
+		if (!range.startsWith("bytes=") || range.contains(",")) return new long[0];
+
+		String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+		if (bounds.length != 2) return new long[0];
+
+		try {
+			long start;
+			long end;
+
+			if (bounds[0].isEmpty()) {
+				// Suffix range: the last N bytes
+				long length = Long.parseLong(bounds[1]);
+				start = Math.max(0, size - length);
+				end = size;
+			} else {
+				start = Long.parseLong(bounds[0]);
+				end = bounds[1].isEmpty() ? size : Math.min(size, Long.parseLong(bounds[1]) + 1);
+			}
+
+			return (start < end) ? new long[] { start, end } : null;
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	private static void sendStatus(SocketChannel channel, int code, String reason, boolean keepAlive) throws IOException {
+		sendHeaders(channel, code, reason, new StringBuilder(), 0, keepAlive);
+	}
+
+	/**
+	 * @param length the value of Content-Length, or {@code -1} to omit it
+	 */
+	private static void sendHeaders(
+			SocketChannel channel, int code, String reason, StringBuilder headers, long length, boolean keepAlive
+	) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+		sb.append("Server: ").append(Main.SHORT_NAME).append('/').append(Main.VERSION).append("\r\n");
+		sb.append("Date: ").append(HTTP_DATE.format(Instant.now())).append("\r\n");
+		sb.append(headers);
+		if (length >= 0) sb.append("Content-Length: ").append(length).append("\r\n");
+		sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+		sb.append("\r\n");
+
+		ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ActionSync extends Action {
+
+	private static final String FILES_PATH = "pages/piwcs/files/";
+
+	private static final String[] ROOTS = { "mods", "config" };
+
+	public ActionSync() {
+		super("Sync");
+	}
+
+	@Override
+	public void run() throws IOException, AbortException {
+		Manifest manifest = readManifest();
+		checkDirectories();
+
+		List<Manifest.FileInfo> changed = findChanged(manifest);
+		List<Path> stale = findStale(manifest);
+
+		long bytes = changed.stream().mapToLong(Manifest.FileInfo::getSize).sum();
+		System.out.printf("%d files to download (%.2f MiB), %d files to delete%n",
+				changed.size(), bytes / (float) (1024 * 1024), stale.size());
+
+		fetch(manifest.getVersion(), changed);
+		delete(stale);
+
+		updateMarker(manifest.getVersion());
+	}
+
+	private static Manifest readManifest() throws IOException, AbortException {
+		System.out.println("Downloading manifest...");
+		Path file = download(MANIFEST_PATH);
+
+		System.out.println("Parsing manifest...");
+		Metrics.Phase.PARSE.begin();
+		Manifest manifest;
+		try {
+			manifest = Manifest.read(file);
+			Metrics.Phase.PARSE.add(Files.size(file), manifest.getFiles().size());
+		} finally {
+			Metrics.Phase.PARSE.end();
+		}
+
+		System.out.println("Manifest describes version " + manifest.getVersion()
+				+ " with " + manifest.getFiles().size() + " files");
+
+		return manifest;
+	}
+
+	private static void checkDirectories() throws IOException {
+		System.out.println("Checking installation directory...");
+		Files.createDirectories(Paths.get("config"));
+		Files.createDirectories(Paths.get("mods", "1.7.10"));
+	}
+
+	/**
+	 * Checks the installed files as Verify does. The files that differ are replaced afterwards.
+	 */
+	private static List<Manifest.FileInfo> findChanged(Manifest manifest) throws IOException, AbortException {
+		System.out.println("Comparing installed files with manifest...");
+		return ActionVerify.check(manifest, true);
+	}
+
+	/**
+	 * Lists installed files that are not in the manifest. Version markers other than the one for the
+	 * manifest's version are stale too; the current marker is rewritten when the sync completes.
+	 */
+	static List<Path> findStale(Manifest manifest) throws IOException {
+		List<Path> result = new ArrayList<>();
+		Path marker = Paths.get("mods", "1.7.10", "PIWCS " + manifest.getVersion() + ".txt");
+
+		for (String root : ROOTS) {
+			try (Stream<Path> paths = Files.walk(Paths.get(root))) {
+				paths
+						.filter(Files::isRegularFile)
+						.filter(p -> manifest.get(Manifest.toString(p)) == null)
+						.filter(p -> !p.equals(marker))
+						.forEach(result::add);
+			}
+		}
+
+		return result;
+	}
+
+	static void fetch(String version, List<Manifest.FileInfo> files) throws IOException, AbortException {
+		List<String> descriptions = new ArrayList<>();
+		List<Workers.Task> tasks = new ArrayList<>();
+
+		for (Manifest.FileInfo file : files) {
+			descriptions.add("Downloading " + file.getPath());
+			tasks.add(() -> fetch(version, file));
+			Metrics.Phase.DOWNLOAD.expect(file.getSize(), 1);
+		}
+
+		Metrics.Phase.DOWNLOAD.begin();
+		try {
+			Workers.run(descriptions, tasks, Settings.getSegmentCount());
+		} finally {
+			Metrics.Phase.DOWNLOAD.end();
+		}
+	}
+
+	private static void fetch(String version, Manifest.FileInfo file) throws IOException, AbortException {
+		Path path = Paths.get(file.getPath());
+		Files.createDirectories(path.getParent());
+
+		Path tmp = path.resolveSibling(path.getFileName() + ".vsiau-tmp");
+		MessageDigest digest = Hashing.newSha256();
+
+		try {
+			try (
+					InputStream input = new DigestInputStream(
+							getSource(FILES_PATH + encode(version) + "/" + encodePath(file.getPath())).openStream(),
+							digest
+					);
+			) {
+				long size = WriteStrategy.write(tmp, file.getSize(), Channels.newChannel(input));
+				Metrics.Phase.DOWNLOAD.add(size, 0);
+			}
+
+			Metrics.Phase.DOWNLOAD.add(0, 1);
+
+			String sha256 = Hashing.toHex(digest.digest());
+			if (!sha256.equals(file.getSha256()) || Files.size(tmp) != file.getSize()) {
+				throw new AbortException("Downloaded file " + file.getPath() + " does not match the manifest "
+						+ "(SHA-256 " + sha256 + ", expected " + file.getSha256() + ")");
+			}
+
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			WriteStrategy.changed(path);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static void delete(List<Path> stale) throws IOException {
+		Metrics.Phase.DELETE.begin();
+		try {
+			deleteFiles(stale);
+		} finally {
+			Metrics.Phase.DELETE.end();
+		}
+	}
+
+	private static void deleteFiles(List<Path> stale) throws IOException {
+		Metrics.Phase.DELETE.expect(0, stale.size());
+
+		for (Path path : stale) {
+			System.out.println("Deleting " + path);
+			Files.delete(path);
+			Metrics.Phase.DELETE.add(0, 1);
+		}
+
+		for (String root : ROOTS) {
+			List<Path> directories;
+			try (Stream<Path> paths = Files.walk(Paths.get(root))) {
+				directories = paths
+						.filter(Files::isDirectory)
+						.sorted(Comparator.reverseOrder())
+						.collect(Collectors.toList());
+			}
+
+			for (Path directory : directories) {
+				if (directory.getNameCount() == 1 || directory.equals(Paths.get("mods", "1.7.10"))) {
+					continue;
+				}
+
+				try (Stream<Path> paths = Files.list(directory)) {
+					if (paths.findAny().isPresent()) continue;
+				}
+
+				System.out.println("Deleting empty directory " + directory);
+				Files.delete(directory);
+			}
+		}
+	}
+
+	private static String encodePath(String path) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (String name : path.split("/")) {
+			if (sb.length() != 0) sb.append('/');
+			sb.append(encode(name));
+		}
+		return sb.toString();
+	}
+
+	private static String encode(String name) throws UnsupportedEncodingException {
+		return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+	}
+
+}
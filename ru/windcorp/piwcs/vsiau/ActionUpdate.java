@@ -1,57 +1,81 @@
 package ru.windcorp.piwcs.vsiau;
 
 import java.io.BufferedReader;
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 public class ActionUpdate extends Action {
 	
-	private static class Program {
+	private static final String PATCH_PATH = "pages/piwcs/latest_patch/";
+	
+	static class Program {
 		private abstract static class Command {
+			/**
+			 * Arguments: archive entry, target and, optionally, the SHA-256 of the entry. The hash is
+			 * computed while the entry is extracted. Targets that already have the size and CRC-32 of
+			 * the entry are not written again.
+			 */
 			private static class Extract extends Command {
 				public Extract() {
-					super("Extract", 2, "Extracting %2$s");
+					super("Extract", 2, 3, "Extracting %2$s");
 				}
 				
 				@Override
-				public void run(String[] args, ZipFile zip) throws IOException, AbortException {
-					ZipEntry source = zip.getEntry(args[0]);
+				public void run(String[] args, Archive archive, Transaction tx) throws IOException, AbortException {
 					Path dest = getPath(args[1]);
 					
-					if (source == null)
-						throw new AbortException("Malformed update program: \"" + source + "\" not found in ZIP file");
+					if (!archive.contains(args[0]))
+						throw new AbortException("Malformed update program: \"" + args[0] + "\" not found in the patch");
+					
+					long crc = archive.getCrc(args[0]);
+					if (crc >= 0 && tx.isUnchanged(dest, archive.getSize(args[0]), crc)) {
+						System.out.println("  not extracting: " + dest + " is up to date");
+						Metrics.Phase.EXTRACT.add(0, 1);
+						return;
+					}
+					
+					Path staged = tx.allocate();
+					MessageDigest digest = (args.length > 2) ? Hashing.newSha256() : null;
 					
-					if (dest.getNameCount() > 1)
-						Files.createDirectories(dest.subpath(0, dest.getNameCount() - 1));
+					long size = archive.extract(args[0], staged, digest);
+					Metrics.Phase.EXTRACT.add(size, 1);
 					
-					try (
-							InputStream inputStream = zip.getInputStream(source);
-							ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
-							FileOutputStream outputStream = new FileOutputStream(dest.toFile());
-							FileChannel outputChannel = outputStream.getChannel();
-					) {
-						outputChannel.transferFrom(inputChannel, 0, Long.MAX_VALUE);
+					if (digest != null) {
+						Hashing.check("Extracted file " + dest, Hashing.toHex(digest.digest()), args[2]);
 					}
+					
+					tx.put(dest, staged, crc);
+				}
+				
+				@Override
+				public Path getTarget(String[] args) throws IOException, AbortException {
+					return getPath(args[1]);
+				}
+				
+				@Override
+				public String getSource(String[] args) {
+					return args[0];
 				}
 			}
 			
@@ -61,58 +85,142 @@ public class ActionUpdate extends Action {
 				}
 				
 				@Override
-				public void run(String[] args, ZipFile zip) throws IOException, AbortException {
-					for (
-							Path path = getPath(args[0]);
-							path.getNameCount() != 0;
-							path = path.subpath(0, path.getNameCount() - 1)
-					) {
-						
-						if (Files.notExists(path)) {
-							System.out.println("  not deleting: " + path + " does not exist");
-							break;
-						} else if (Files.isRegularFile(path)) {
-							// Go forth; delete silently
-						} else if (Files.isDirectory(path)) {
-							try (Stream<Path> paths = Files.list(path)) {
-								if (paths.findAny().isPresent()) {
-									break;
-								} else {
-									System.out.println("  also deleting empty directory " + path);
-								}
-							}
-						} else {
-							System.out.println("  not deleting: " + path + " does not denote a file or a directory");
-							break;
-						}
-						
-						Files.delete(path);
-						
+				public Path getTarget(String[] args) throws IOException, AbortException {
+					return getPath(args[0]);
+				}
+				
+				/**
+				 * The deletion is only recorded here. Files are deleted, and empty parent directories
+				 * pruned, all at once when the transaction is committed.
+				 */
+				@Override
+				public List<Path> track(String[] args, Transaction tx, EmptyDirectories directories) throws IOException, AbortException {
+					Path path = getPath(args[0]);
+					return tx.exists(path) ? directories.deleted(path) : Collections.emptyList();
+				}
+				
+				@Override
+				public void run(String[] args, Archive archive, Transaction tx) throws IOException, AbortException {
+					Path path = getPath(args[0]);
+					
+					if (!tx.exists(path)) {
+						System.out.println("  not deleting: " + path + " does not exist");
+						return;
 					}
+					
+					tx.delete(path);
+				}
+			}
+			
+			private static class Patch extends Command {
+				public Patch() {
+					super("Patch", 4, "Patching %2$s");
+				}
+				
+				@Override
+				public void run(String[] args, Archive archive, Transaction tx) throws IOException, AbortException {
+					Path dest = getPath(args[1]);
+					
+					if (!archive.contains(args[0]))
+						throw new AbortException("Malformed update program: \"" + args[0] + "\" not found in the patch");
+					
+					Path current = tx.resolve(dest);
+					if (current == null || !Files.isRegularFile(current))
+						throw new AbortException("Cannot patch " + dest + ": file not found. Please reinstall from scratch.");
+					
+					String before = Hashing.sha256(current);
+					if (!before.equalsIgnoreCase(args[2])) {
+						throw new AbortException("Cannot patch " + dest + ": file has been modified "
+								+ "(SHA-256 " + before + ", expected " + args[2] + "). Please reinstall from scratch.");
+					}
+					
+					Path staged = tx.allocate();
+					
+					String after;
+					try (InputStream inputStream = archive.getInputStream(args[0])) {
+						after = Delta.apply(current, inputStream, staged);
+					}
+					
+					if (!after.equalsIgnoreCase(args[3])) {
+						throw new AbortException("Malformed update program: patching " + dest
+								+ " produced SHA-256 " + after + ", expected " + args[3]);
+					}
+					
+					Metrics.Phase.EXTRACT.add(Files.size(staged), 1);
+					tx.put(dest, staged);
+				}
+				
+				@Override
+				public Path getTarget(String[] args) throws IOException, AbortException {
+					return getPath(args[1]);
+				}
+				
+				@Override
+				public String getSource(String[] args) {
+					return args[0];
 				}
 			}
 			
 			private final String name;
+			private final int minArgCount;
 			private final int argCount;
 			private final String description;
 			
 			protected Command(String name, int argCount, String description) {
+				this(name, argCount, argCount, description);
+			}
+			
+			protected Command(String name, int minArgCount, int argCount, String description) {
 				this.name = name;
+				this.minArgCount = minArgCount;
 				this.argCount = argCount;
 				this.description = description;
 			}
 			
-			public abstract void run(String[] args, ZipFile zip) throws IOException, AbortException;
+			public abstract void run(String[] args, Archive archive, Transaction tx) throws IOException, AbortException;
+			
+			/**
+			 * @return the path that this command creates, replaces or deletes
+			 */
+			public abstract Path getTarget(String[] args) throws IOException, AbortException;
+			
+			/**
+			 * Records the effect of this command on directories. Called in program order before the
+			 * batch of the command runs.
+			 * @return the directories that this command empties
+			 */
+			public List<Path> track(String[] args, Transaction tx, EmptyDirectories directories) throws IOException, AbortException {
+				directories.created(getTarget(args));
+				return Collections.emptyList();
+			}
+			
+			/**
+			 * @return the archive entry that this command reads, or {@code null}
+			 */
+			public String getSource(String[] args) {
+				return null;
+			}
 			
 			@SuppressWarnings("unused")
 			public String getName() {
 				return name;
 			}
 			
+			/**
+			 * @return the maximum number of arguments
+			 */
 			public int getArgCount() {
 				return argCount;
 			}
 			
+			public void checkArgCount(int count) throws AbortException {
+				if (count < minArgCount || count > argCount) {
+					throw new AbortException("Malformed update program: command " + name
+							+ " requires " + (minArgCount == argCount ? "" : minArgCount + " to ") + argCount
+							+ " arguments but " + count + " provided");
+				}
+			}
+			
 			public String getDescription(String[] args) {
 				return String.format(description, (Object[]) args);
 			}
@@ -136,15 +244,61 @@ public class ActionUpdate extends Action {
 		private static class CommandInvocation {
 			private final Command command;
 			private final String[] args;
+			private final Archive archive;
+			private final long offset;
 			
-			public CommandInvocation(Command command, String[] args) {
+			private List<Path> emptied = Collections.emptyList();
+			
+			public CommandInvocation(Command command, String[] args, Archive archive, long offset) {
 				this.command = command;
 				this.args = args;
+				this.archive = archive;
+				this.offset = offset;
+			}
+
+			public String getDescription() {
+				return command.getDescription(args);
 			}
 
-			public void run(ZipFile zip) throws IOException, AbortException {
-				System.out.println(command.getDescription(args));
-				command.run(args, zip);
+			public void track(Transaction tx, EmptyDirectories directories) throws IOException, AbortException {
+				emptied = command.track(args, tx, directories);
+			}
+
+			public void run(Transaction tx) throws IOException, AbortException {
+				command.run(args, archive, tx);
+				
+				for (Path dir : emptied) {
+					System.out.println("  also deleting empty directory " + dir);
+				}
+			}
+		}
+		
+		/**
+		 * A group of consecutive instructions that can run concurrently. No instruction in a batch
+		 * touches a path that another instruction of the batch touches, or a parent or child of it.
+		 */
+		private static class Batch {
+			private final List<CommandInvocation> invocations = new ArrayList<>();
+			private final Set<Path> targets = new HashSet<>();
+			private final Set<Path> parents = new HashSet<>();
+			
+			public boolean accepts(Path target) {
+				if (targets.contains(target) || parents.contains(target)) return false;
+				
+				for (Path parent = target.getParent(); parent != null; parent = parent.getParent()) {
+					if (targets.contains(parent)) return false;
+				}
+				
+				return true;
+			}
+			
+			public void add(CommandInvocation inv, Path target) {
+				invocations.add(inv);
+				targets.add(target);
+				
+				for (Path parent = target.getParent(); parent != null; parent = parent.getParent()) {
+					parents.add(parent);
+				}
 			}
 		}
 		
@@ -153,13 +307,23 @@ public class ActionUpdate extends Action {
 		static {
 			new Command.Extract().register();
 			new Command.Delete().register();
+			new Command.Patch().register();
 		}
 		
-		private final List<CommandInvocation> instructions = new ArrayList<>();
+		private final ArrayList<CommandInvocation> instructions = new ArrayList<>();
 		private String expectedVersion;
 		private String newVersion;
 		
-		public Program(Reader source) throws IOException, AbortException {
+		private final Archive archive;
+		
+		/**
+		 * Parses an update program.
+		 * @param source the program text
+		 * @param archive the patch that the program extracts files from
+		 */
+		public Program(Reader source, Archive archive) throws IOException, AbortException {
+			this.archive = archive;
+			
 			readHeader(source);
 			
 			StringBuilder commandName = new StringBuilder();
@@ -217,11 +381,129 @@ public class ActionUpdate extends Action {
 			compile(commandName, args, element + 1);
 		}
 		
-		private static final char SYNTAX_VERSION = '0';
+		/**
+		 * Parses a compiled update program and validates it in a single pass. See
+		 * {@link ProgramCompiler} for the format.
+		 * @param source the program; the buffer is consumed
+		 * @param archive the patch that the program extracts files from
+		 */
+		public Program(ByteBuffer source, Archive archive) throws IOException, AbortException {
+			this.archive = archive;
+			
+			try {
+				if (source.get() != ProgramCompiler.SYNTAX_VERSION || source.get() != '\n') {
+					throw new AbortException("Malformed update program: not a compiled program");
+				}
+				
+				expectedVersion = readString(source);
+				newVersion = readString(source);
+				
+				String[] strings = new String[readCount(source)];
+				for (int i = 0; i < strings.length; ++i) {
+					strings[i] = readString(source);
+				}
+				
+				Command[] commands = new Command[readCount(source)];
+				int[] argCounts = new int[commands.length];
+				
+				for (int i = 0; i < commands.length; ++i) {
+					String name = strings[readIndex(source, strings.length)];
+					argCounts[i] = readVarInt(source);
+					
+					commands[i] = COMMANDS.get(name);
+					
+					if (commands[i] == null) {
+						throw new AbortException("Malformed update program: unknown command \"" + name + "\"");
+					}
+					
+					commands[i].checkArgCount(argCounts[i]);
+				}
+				
+				int count = readCount(source);
+				instructions.ensureCapacity(count);
+				
+				for (int i = 0; i < count; ++i) {
+					int opcode = readIndex(source, commands.length);
+					Command command = commands[opcode];
+					String[] args = new String[argCounts[opcode]];
+					
+					for (int arg = 0; arg < args.length; ++arg) {
+						args[arg] = strings[readIndex(source, strings.length)];
+					}
+					
+					add(command, args);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new AbortException("Malformed update program: unexpected end of program", e);
+			}
+			
+			if (source.hasRemaining()) {
+				throw new AbortException("Malformed update program: unexpected data after the last instruction");
+			}
+		}
+		
+		private static int readVarInt(ByteBuffer source) throws AbortException {
+			int result = 0;
+			
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = source.get();
+				result |= (b & 0x7F) << shift;
+				
+				if ((b & 0x80) == 0) {
+					if (result < 0) break;
+					return result;
+				}
+			}
+			
+			throw new AbortException("Malformed update program: number out of range");
+		}
+		
+		/**
+		 * Reads the length of a table. Every element takes at least one byte, so the length is
+		 * checked against the remaining data before anything is allocated.
+		 */
+		private static int readCount(ByteBuffer source) throws AbortException {
+			int count = readVarInt(source);
+			if (count > source.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			return count;
+		}
+		
+		private static int readIndex(ByteBuffer source, int size) throws AbortException {
+			int index = readVarInt(source);
+			if (index >= size) {
+				throw new AbortException("Malformed update program: index " + index + " out of range");
+			}
+			return index;
+		}
+		
+		private static String readString(ByteBuffer source) throws AbortException {
+			int length = readCount(source);
+			String result;
+			
+			if (source.hasArray()) {
+				result = new String(source.array(), source.arrayOffset() + source.position(), length, StandardCharsets.UTF_8);
+				source.position(source.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				source.get(bytes);
+				result = new String(bytes, StandardCharsets.UTF_8);
+			}
+			
+			return result;
+		}
+		
+		/**
+		 * The newest text syntax version this updater understands. Version 1 added the Patch command;
+		 * programs of older versions are still accepted. Version 2 is the compiled format, see
+		 * {@link ProgramCompiler}.
+		 */
+		private static final char SYNTAX_VERSION = '1';
 		
 		private void readHeader(Reader source) throws IOException, AbortException {
 			int syntaxVersion = source.read();
-			if (syntaxVersion != SYNTAX_VERSION) {
+			if (syntaxVersion < '0' || syntaxVersion > SYNTAX_VERSION) {
 				throw new AbortException("This updater cannot apply the update because the updater is outdated. "
 						+ "Reinstall from scratch or get the newest updater. "
 						+ "Required syntax version: " + ((char) syntaxVersion));
@@ -268,23 +550,158 @@ public class ActionUpdate extends Action {
 				throw new AbortException("Malformed update program: unknown command \"" + commandName + "\"");
 			}
 			
-			if (argCount != command.getArgCount()) {
-				throw new AbortException("Malformed update program: command " + commandName
-						+ " requires " + command.getArgCount()
-						+ " arguments but " + argCount + " provided");
-			}
+			command.checkArgCount(argCount);
 			
 			String[] strArgs = new String[argCount];
 			for (int i = 0; i < strArgs.length; ++i) strArgs[i] = args[i].toString();
 			
-			instructions.add(new CommandInvocation(command, strArgs));
+			add(command, strArgs);
+		}
+		
+		private void add(Command command, String[] args) {
+			String entry = command.getSource(args);
+			long offset = (entry == null || archive == null) ? -1 : archive.getOffset(entry);
+			
+			instructions.add(new CommandInvocation(command, args, archive, offset));
+		}
+		
+		private Program(String expectedVersion, String newVersion) {
+			this.expectedVersion = expectedVersion;
+			this.newVersion = newVersion;
+			this.archive = null;
+		}
+		
+		/**
+		 * Combines consecutive patches into a single program. An Extract is dropped if a later
+		 * instruction extracts or deletes the same path, and a Delete is dropped if a later
+		 * instruction extracts the same path again.
+		 * @param programs the programs in the order they should be applied
+		 */
+		public static Program merge(List<Program> programs) throws IOException, AbortException {
+			Program result = new Program(
+					programs.get(0).getExpectedVersion(),
+					programs.get(programs.size() - 1).getNewVersion()
+			);
+			
+			List<CommandInvocation> all = new ArrayList<>();
+			for (Program program : programs) {
+				all.addAll(program.getInstructions());
+			}
+			
+			Set<Path> replaced = new HashSet<>();
+			Set<Path> recreated = new HashSet<>();
+			CommandInvocation[] kept = new CommandInvocation[all.size()];
+			
+			for (int i = all.size() - 1; i >= 0; --i) {
+				CommandInvocation inv = all.get(i);
+				Path target = inv.command.getTarget(inv.args).normalize();
+				boolean drop;
+				
+				if (inv.command instanceof Command.Extract) {
+					drop = replaced.contains(target);
+					replaced.add(target);
+					recreated.add(target);
+				} else if (inv.command instanceof Command.Delete) {
+					drop = recreated.contains(target);
+					replaced.add(target);
+				} else {
+					// Unknown commands may depend on the previous state of their target
+					drop = false;
+					replaced.remove(target);
+					recreated.remove(target);
+				}
+				
+				if (!drop) kept[i] = inv;
+			}
+			
+			for (CommandInvocation inv : kept) {
+				if (inv != null) result.instructions.add(inv);
+			}
+			
+			return result;
 		}
 
-		public void run(ZipFile zip) throws IOException, AbortException {
+		/**
+		 * Applies the update. Instructions are split into batches of independent instructions;
+		 * batches run one after another while the instructions of a batch run concurrently, so the
+		 * result is the same as that of running the instructions in program order. Within a batch,
+		 * archive entries are read in the order they are stored in their archives.
+		 * <p>
+		 * Changes are only staged in the transaction; the installation is not modified.
+		 */
+		public void run(Transaction tx) throws IOException, AbortException {
+			run(tx, Settings.getThreads());
+		}
+		
+		/**
+		 * Same as {@link #run(Transaction)}, but uses the given number of threads.
+		 */
+		public void run(Transaction tx, int threads) throws IOException, AbortException {
 			System.out.println("Applying update...");
+			
+			Metrics.Phase.EXTRACT.expect(0, instructions.stream().filter(inv -> !(inv.command instanceof Command.Delete)).count());
+			Metrics.Phase.EXTRACT.begin();
+			try {
+				runBatches(tx, threads);
+			} finally {
+				Metrics.Phase.EXTRACT.end();
+			}
+		}
+		
+		private void runBatches(Transaction tx, int threads) throws IOException, AbortException {
+			EmptyDirectories directories = new EmptyDirectories(tx);
+			
+			for (Batch batch : plan()) {
+				List<CommandInvocation> invocations = batch.invocations;
+				
+				List<String> descriptions = new ArrayList<>(invocations.size());
+				List<Workers.Task> tasks = new ArrayList<>(invocations.size());
+				Map<Archive, Integer> archives = new HashMap<>();
+				
+				// In program order, so that each directory is reported by the deletion that empties it
+				for (CommandInvocation inv : invocations) {
+					inv.track(tx, directories);
+				}
+				
+				for (CommandInvocation inv : invocations) {
+					descriptions.add(inv.getDescription());
+					tasks.add(() -> inv.run(tx));
+					archives.putIfAbsent(inv.archive, archives.size());
+				}
+				
+				int[] order = IntStream.range(0, invocations.size())
+						.boxed()
+						.sorted(
+								Comparator.<Integer>comparingInt(i -> archives.get(invocations.get(i).archive))
+								.thenComparingLong(i -> invocations.get(i).offset)
+						)
+						.mapToInt(Integer::intValue)
+						.toArray();
+				
+				Workers.run(descriptions, tasks, order, threads);
+			}
+		}
+		
+		private List<Batch> plan() throws IOException, AbortException {
+			List<Batch> batches = new ArrayList<>();
+			Batch current = new Batch();
+			
 			for (CommandInvocation inv : instructions) {
-				inv.run(zip);
+				Path target = inv.command.getTarget(inv.args).normalize();
+				
+				if (!current.accepts(target)) {
+					batches.add(current);
+					current = new Batch();
+				}
+				
+				current.add(inv, target);
+			}
+			
+			if (!current.invocations.isEmpty()) {
+				batches.add(current);
 			}
+			
+			return batches;
 		}
 		
 		public List<CommandInvocation> getInstructions() {
@@ -300,109 +717,314 @@ public class ActionUpdate extends Action {
 		}
 	}
 	
+	/**
+	 * The patches of a run. The latest patch is downloaded up front; older patches are only
+	 * downloaded when an installation needs them, and only once however many installations do.
+	 */
+	private static class Patches implements Closeable {
+		private final List<Archive> archives = new ArrayList<>();
+		private final Program latest;
+		
+		/**
+		 * The patch index, or {@code null} if it has not been downloaded yet.
+		 */
+		private Map<String, String> index = null;
+		
+		/**
+		 * Programs of older patches: expected version -> program.
+		 */
+		private final Map<String, Program> older = new HashMap<>();
+		
+		/**
+		 * Programs that update an installed version to the newest one: installed version -> program.
+		 */
+		private final Map<String, Program> merged = new HashMap<>();
+		
+		public Patches(Path zipFile) throws IOException, AbortException {
+			Archive archive = unpackZipFile(zipFile);
+			archives.add(archive);
+			
+			try {
+				latest = readProgram(archive);
+			} catch (IOException | AbortException | RuntimeException e) {
+				archive.close();
+				throw e;
+			}
+		}
+		
+		public String getNewVersion() {
+			return latest.getNewVersion();
+		}
+		
+		/**
+		 * @return the program that updates the installed version to the newest version
+		 */
+		public Program getProgram(String installed) throws IOException, AbortException {
+			if (installed.equals(latest.getExpectedVersion())) return latest;
+			
+			synchronized (this) {
+				Program program = merged.get(installed);
+				
+				if (program == null) {
+					List<Program> chain = downloadChain(installed, latest.getExpectedVersion());
+					chain.add(latest);
+					program = mergePrograms(chain);
+					merged.put(installed, program);
+				}
+				
+				return program;
+			}
+		}
+		
+		/**
+		 * Downloads the patches that update the installed version to the expected version.
+		 * @return the programs of the patches in the order they should be applied
+		 */
+		private List<Program> downloadChain(String installed, String expected) throws IOException, AbortException {
+			if (index == null) index = readPatchIndex();
+			
+			List<String> chain = new ArrayList<>();
+			for (String version = installed; !version.equals(expected); version = index.get(version)) {
+				if (!index.containsKey(version) || chain.contains(version)) {
+					throw new AbortException("Expected version " + expected
+							+ " but found version " + installed
+							+ " and no chain of patches leads from it. Please reinstall from scratch.");
+				}
+				
+				chain.add(version);
+			}
+			
+			List<String> missing = new ArrayList<>(chain);
+			missing.removeAll(older.keySet());
+			
+			if (!missing.isEmpty()) {
+				System.out.println("Downloading " + missing.size() + " more patches to update from version " + installed);
+				downloadPatches(missing);
+			}
+			
+			List<Program> programs = new ArrayList<>();
+			for (String version : chain) {
+				programs.add(older.get(version));
+			}
+			
+			return programs;
+		}
+		
+		private void downloadPatches(List<String> versions) throws IOException, AbortException {
+			ExecutorService executor = Workers.newPool(versions.size(), "download");
+			try {
+				List<Future<Path>> downloads = new ArrayList<>();
+				for (String version : versions) {
+					downloads.add(executor.submit(() -> download("pages/piwcs/patch/" + version + "/")));
+				}
+				
+				for (int i = 0; i < versions.size(); ++i) {
+					Path zipFile = Workers.await(downloads.get(i));
+					
+					Archive archive = unpackZipFile(zipFile);
+					archives.add(archive);
+					
+					older.put(versions.get(i), readProgram(archive));
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			for (Archive archive : archives) {
+				archive.close();
+			}
+		}
+	}
+	
 	public ActionUpdate() {
 		super("Update");
 	}
+	
+	@Override
+	public boolean supportsTargets() {
+		return true;
+	}
+	
+	@Override
+	public List<String> getPrefetchPaths() {
+		return Collections.singletonList(PATCH_PATH);
+	}
 
+	/**
+	 * Downloads and parses the patches once and applies them to every installation given by
+	 * {@link Settings#getTargets()}.
+	 */
 	@Override
 	public void run() throws IOException, AbortException {
+		List<Path> targets = Settings.getTargets();
 		Path zipFile = downloadZipFile();
 		
-		try (ZipFile zip = unpackZipFile(zipFile)) {
-			Program program = readProgram(zip);
-			checkDirectories(program.getExpectedVersion(), program.getNewVersion());
-			program.run(zip);
-
-			updateMarker(program.getNewVersion());
+		try (Patches patches = new Patches(zipFile)) {
+			if (targets.size() == 1) {
+				if (update(targets.get(0), patches, Settings.getThreads()) == null) {
+					throw new AbortException("Installation is up-to-date");
+				}
+				return;
+			}
+			
+			System.out.println("Updating " + targets.size() + " installations...");
+			
+			runOnTargets(targets, (root, threads) -> {
+				String installed = update(root, patches, threads);
+				
+				return (installed == null)
+						? "already at version " + patches.getNewVersion()
+						: "updated from version " + installed + " to version " + patches.getNewVersion();
+			});
 		}
 	}
+	
+	/**
+	 * Updates a single installation.
+	 * @return the version that was installed, or {@code null} if the installation is up to date
+	 */
+	private static String update(Path root, Patches patches, int threads) throws IOException, AbortException {
+		Transaction.recover(root);
+		
+		System.out.println("Checking installation directory" + (root.toString().isEmpty() ? "" : " " + root) + "...");
+		String installed = findInstalledVersion(root);
+		
+		if (installed.equals(patches.getNewVersion())) {
+			return null;
+		}
+		
+		Program program = patches.getProgram(installed);
+		
+		Transaction tx = new Transaction(root);
+		try {
+			program.run(tx, threads);
+			
+			Path marker = tx.allocate();
+			writeMarker(marker);
+			tx.put(getMarkerPath(program.getNewVersion()), marker);
+		} catch (IOException | AbortException | RuntimeException e) {
+			System.out.println("Update failed, discarding staged changes");
+			tx.discard();
+			throw e;
+		}
+		
+		tx.commit();
+		return installed;
+	}
 
-	private static Path downloadZipFile() throws IOException {
+	private static Path downloadZipFile() throws IOException, AbortException {
 		System.out.println("Downloading patch...");
-		return download("pages/piwcs/latest_patch/");
+		return download(PATCH_PATH);
 	}
 
-	private static ZipFile unpackZipFile(Path zipFile) throws IOException {
+	private static Archive unpackZipFile(Path zipFile) throws IOException, AbortException {
 		System.out.println("Unpacking patch...");
-		ZipFile zip = new ZipFile(zipFile.toFile());
+		Archive archive = Archive.open(zipFile);
 		
-		return zip;
+		return archive;
 	}
-
-	private static Program readProgram(ZipFile zip) throws IOException, AbortException {
-		System.out.println("Parsing update instructions...");
-		ZipEntry entry = zip.getEntry("program");
+	
+	/**
+	 * Reads the patch index. Each line of the index except the first one, which holds the syntax
+	 * version, describes a patch available at {@code pages/piwcs/patch/<expected version>/} as
+	 * {@code <expected version>; <new version>}.
+	 * @return map of expected versions to new versions
+	 */
+	private static Map<String, String> readPatchIndex() throws IOException, AbortException {
+		System.out.println("Downloading patch index...");
+		Path file = download("pages/piwcs/patches/");
 		
-		if (entry == null) {
-			throw new AbortException("Malformed update package: update program not found");
+		Map<String, String> result = new HashMap<>();
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		
+		if (lines.isEmpty() || !lines.get(0).equals("0")) {
+			throw new AbortException("This updater cannot read the patch index because the updater is outdated. "
+					+ "Reinstall from scratch or get the newest updater.");
 		}
 		
-		try (
-				InputStream inputStream = zip.getInputStream(entry);
-				Reader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-		) {
-			Program program = new Program(reader);
+		for (String line : lines.subList(1, lines.size())) {
+			if (line.isEmpty()) continue;
 			
-			System.out.println(
-					"This patch updates version " + program.getExpectedVersion() + 
-					" to version " + program.getNewVersion() + 
-					" using " + program.getInstructions().size() + " instructions"
-			);
+			String[] versions = line.split("; ");
+			if (versions.length != 2) {
+				throw new AbortException("Malformed patch index: cannot parse line \"" + line + "\"");
+			}
 			
-			return program;
+			result.put(versions[0], versions[1]);
 		}
+		
+		return result;
 	}
-
-	private static void checkDirectories(String expected, String newest) throws IOException, AbortException {
-		System.out.println("Checking installation directory...");
+	
+	private static Program mergePrograms(List<Program> programs) throws IOException, AbortException {
+		int total = 0;
+		for (int i = 0; i < programs.size(); ++i) {
+			Program program = programs.get(i);
+			total += program.getInstructions().size();
+			
+			if (i > 0 && !program.getExpectedVersion().equals(programs.get(i - 1).getNewVersion())) {
+				throw new AbortException("Malformed patch index: patch for version " + program.getExpectedVersion()
+						+ " follows patch to version " + programs.get(i - 1).getNewVersion());
+			}
+		}
 		
-		Path markerPath = Paths.get("mods", "1.7.10");
+		Program result = Program.merge(programs);
 		
-		if (!Files.isDirectory(markerPath)) {
-			throw new AbortException("PIWCS modpack not installed: directory \"" + markerPath + "\" not found");
-		}
+		System.out.println(
+				"Combined " + programs.size() + " patches from version " + result.getExpectedVersion()
+				+ " to version " + result.getNewVersion() + " into " + result.getInstructions().size()
+				+ " instructions, " + (total - result.getInstructions().size()) + " superseded instructions dropped"
+		);
 		
-		Pattern regex = Pattern.compile("PIWCS \\d+\\.\\d+\\.\\d+\\.txt");
+		return result;
+	}
+
+	private static Program readProgram(Archive archive) throws IOException, AbortException {
+		System.out.println("Parsing update instructions...");
 		
-		List<String> markers;
-		try (Stream<Path> paths = Files.list(markerPath)) {
-			markers = paths.map(Path::getFileName)
-				.map(Path::toString)
-				.filter(regex.asPredicate())
-				.map(s -> s.substring("PIWCS ".length(), s.length() - ".txt".length()))
-				.collect(Collectors.toCollection(ArrayList::new));
+		if (!archive.contains("program")) {
+			throw new AbortException("Malformed update package: update program not found");
 		}
 		
-		if (markers.isEmpty()) {
-			throw new AbortException("PIWCS modpack not installed: file \"PIWCS " + expected + ".txt\" not found");
+		Metrics.Phase.PARSE.begin();
+		try {
+			Program program = parseProgram(archive);
+			Metrics.Phase.PARSE.add(archive.getSize("program"), program.getInstructions().size());
+			return program;
+		} finally {
+			Metrics.Phase.PARSE.end();
+		}
+	}
+	
+	private static Program parseProgram(Archive archive) throws IOException, AbortException {
+		int syntaxVersion;
+		try (InputStream inputStream = archive.getInputStream("program")) {
+			syntaxVersion = inputStream.read();
 		}
 		
-		markers.sort(Comparator.reverseOrder());
-		String marker = markers.get(0);
-		
-		if (markers.size() > 1)
-			System.out.println("Found modpack version markers " + markers + ", assuming " + marker);
-		else
-			System.out.println("Found modpack version marker " + marker);
+		Program program;
 		
-		if (!marker.equals(expected)) {
-			if (marker.equals(newest)) {
-				throw new AbortException("Installation is up-to-date");
+		if (syntaxVersion == ProgramCompiler.SYNTAX_VERSION) {
+			program = new Program(archive.read("program"), archive);
+		} else {
+			try (
+					InputStream inputStream = archive.getInputStream("program");
+					Reader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+			) {
+				program = new Program(reader, archive);
 			}
-			throw new AbortException("Expected version " + expected
-					+ " but found version " + marker
-					+ ". Please reinstall from scratch.");
 		}
-	}
-	
-	private static  void updateMarker(String version) throws IOException {
-		Files.write(
-				Paths.get("mods", "1.7.10", "PIWCS " + version + ".txt"),
-				(
-						"Модпак PIWCS. Обновлено автоматически при помощи " +
-						Main.NAME + " " + Main.VERSION + "."
-				).getBytes(StandardCharsets.UTF_8)
+		
+		System.out.println(
+				"This patch updates version " + program.getExpectedVersion() + 
+				" to version " + program.getNewVersion() + 
+				" using " + program.getInstructions().size() + " instructions"
 		);
+		
+		return program;
 	}
 
 }
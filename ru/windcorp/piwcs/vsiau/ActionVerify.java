@@ -0,0 +1,143 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the installed files against the manifest of the installed version and, with
+ * {@code --repair}, downloads the files that are damaged or missing.
+ */
+public class ActionVerify extends Action {
+
+	private static final String VERSION_MANIFEST_PATH = "pages/piwcs/manifest/";
+
+	public ActionVerify() {
+		super("Verify");
+	}
+
+	@Override
+	public void run() throws IOException, AbortException {
+		System.out.println("Checking installation directory...");
+		String version = findInstalledVersion();
+
+		Manifest manifest = readManifest(version);
+		List<Manifest.FileInfo> damaged = check(manifest, Settings.isRepair());
+
+		List<Path> extra = ActionSync.findStale(manifest);
+		for (Path path : extra) {
+			System.out.println("  not in the modpack: " + path);
+		}
+
+		System.out.printf("%d files checked, %d damaged or missing, %d not in the modpack%n",
+				manifest.getFiles().size(), damaged.size(), extra.size());
+
+		if (damaged.isEmpty()) {
+			return;
+		}
+
+		if (!Settings.isRepair()) {
+			throw new AbortException(damaged.size() + " files are damaged or missing. "
+					+ "Run Verify with --repair to download them again");
+		}
+
+		System.out.println("Repairing " + damaged.size() + " files...");
+		ActionSync.fetch(version, damaged);
+	}
+
+	/**
+	 * Finds the manifest of the given version. The latest manifest is tried first since it is
+	 * usually the one needed.
+	 */
+	private static Manifest readManifest(String version) throws IOException, AbortException {
+		System.out.println("Downloading manifest...");
+		Manifest manifest = Manifest.read(download(MANIFEST_PATH));
+
+		if (manifest.getVersion().equals(version)) {
+			return manifest;
+		}
+
+		System.out.println("Latest manifest describes version " + manifest.getVersion()
+				+ ", downloading manifest of version " + version + "...");
+
+		try {
+			manifest = Manifest.read(download(VERSION_MANIFEST_PATH + version + "/"));
+		} catch (FileNotFoundException e) {
+			throw new AbortException("No manifest is published for version " + version + ", cannot verify it");
+		}
+
+		if (!manifest.getVersion().equals(version)) {
+			throw new AbortException("Malformed manifest: expected version " + version
+					+ ", found " + manifest.getVersion());
+		}
+
+		return manifest;
+	}
+
+	/**
+	 * Hashes all files of the manifest in parallel. Files of the wrong size are not hashed.
+	 * @param replacing whether the files that differ are going to be replaced
+	 * @return the files that are missing or differ from the manifest, in manifest order
+	 */
+	static List<Manifest.FileInfo> check(Manifest manifest, boolean replacing) throws IOException, AbortException {
+		List<Manifest.FileInfo> files = new ArrayList<>(manifest.getFiles());
+		String[] problems = new String[files.size()];
+
+		List<String> descriptions = new ArrayList<>();
+		List<Workers.Task> tasks = new ArrayList<>();
+
+		for (int i = 0; i < files.size(); ++i) {
+			int index = i;
+			Manifest.FileInfo file = files.get(i);
+
+			descriptions.add("Checking " + file.getPath());
+			tasks.add(() -> problems[index] = check(file, replacing));
+			Metrics.Phase.VERIFY.expect(file.getSize(), 1);
+		}
+
+		Metrics.Phase.VERIFY.begin();
+		try {
+			Workers.run(descriptions, tasks, Settings.getThreads());
+		} finally {
+			Metrics.Phase.VERIFY.end();
+		}
+
+		List<Manifest.FileInfo> result = new ArrayList<>();
+		for (int i = 0; i < files.size(); ++i) {
+			if (problems[i] != null) {
+				System.out.println("  " + problems[i] + ": " + files.get(i).getPath());
+				result.add(files.get(i));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return a description of the problem, or {@code null} if the file is intact
+	 */
+	private static String check(Manifest.FileInfo file, boolean replacing) throws IOException {
+		Path path = Paths.get(file.getPath());
+
+		if (!Files.isRegularFile(path)) {
+			Metrics.Phase.VERIFY.add(file.getSize(), 1);
+			return "missing";
+		}
+
+		if (Files.size(path) != file.getSize()) {
+			Metrics.Phase.VERIFY.add(file.getSize(), 1);
+			return "wrong size";
+		}
+
+		// Mapped buffers are only released when collected, and Windows refuses to replace mapped files
+		String sha256 = replacing ? Hashing.sha256(path) : Hashing.sha256Mapped(path);
+		Metrics.Phase.VERIFY.add(file.getSize(), 1);
+
+		return sha256.equals(file.getSha256()) ? null : "modified";
+	}
+
+}
@@ -0,0 +1,454 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.tukaani.xz.XZInputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+/**
+ * A downloaded modpack or patch. Archives are either ZIP files or tar files that may be compressed
+ * with gzip, xz or zstd as a whole; the format is recognized by the first bytes of the file.
+ * <p>
+ * ZIP entries are read in place. Tar archives can only be read from start to end, so their entries
+ * are decompressed into a spool directory when the archive is opened.
+ * <p>
+ * Java has no xz or zstd decoders, so XZ for Java and aircompressor are bundled with the updater.
+ */
+public abstract class Archive implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+	private static final byte[] ZIP_EMPTY_MAGIC = { 'P', 'K', 5, 6 };
+	private static final byte[] GZIP_MAGIC = { 0x1F, (byte) 0x8B };
+	private static final byte[] XZ_MAGIC = { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 };
+	private static final byte[] ZSTD_MAGIC = { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD };
+
+	private static final int MAGIC_LENGTH = 6;
+
+	/**
+	 * Opens a downloaded archive. Tar archives are unpacked into a spool directory, which is
+	 * deleted when the archive is closed.
+	 */
+	public static Archive open(Path file) throws IOException, AbortException {
+		if (isZip(file)) {
+			return new Zip(file);
+		}
+
+		Tar tar = new Tar(file);
+		try {
+			tar.spool();
+		} catch (IOException | AbortException | RuntimeException e) {
+			tar.close();
+			throw e;
+		}
+		return tar;
+	}
+
+	/**
+	 * @return {@code true} if the file is a ZIP archive
+	 */
+	public static boolean isZip(Path file) throws IOException {
+		byte[] magic = new byte[MAGIC_LENGTH];
+		int length;
+
+		try (InputStream input = Files.newInputStream(file)) {
+			length = input.read(magic);
+		}
+
+		return startsWith(magic, length, ZIP_MAGIC) || startsWith(magic, length, ZIP_EMPTY_MAGIC);
+	}
+
+	/**
+	 * Peeks at the beginning of a stream to tell ZIP archives from tar archives.
+	 * @param input a stream that supports {@link InputStream#mark(int)}
+	 * @return {@code true} if the stream contains a ZIP archive
+	 */
+	public static boolean isZip(InputStream input) throws IOException {
+		byte[] magic = peek(input);
+		return startsWith(magic, magic.length, ZIP_MAGIC) || startsWith(magic, magic.length, ZIP_EMPTY_MAGIC);
+	}
+
+	/**
+	 * Wraps a stream of a possibly compressed tar archive to read the tar archive itself.
+	 */
+	public static TarReader openTar(InputStream input) throws IOException, AbortException {
+		if (!input.markSupported()) {
+			input = new BufferedInputStream(input, BUFFER_SIZE);
+		}
+
+		byte[] magic = peek(input);
+		InputStream decompressed;
+
+		if (startsWith(magic, magic.length, GZIP_MAGIC)) {
+			decompressed = new GZIPInputStream(input, BUFFER_SIZE);
+		} else if (startsWith(magic, magic.length, XZ_MAGIC)) {
+			decompressed = new XZInputStream(input);
+		} else if (startsWith(magic, magic.length, ZSTD_MAGIC)) {
+			decompressed = new ZstdInputStream(input);
+		} else {
+			decompressed = input;
+		}
+
+		return new TarReader(new BufferedInputStream(decompressed, BUFFER_SIZE));
+	}
+
+	private static byte[] peek(InputStream input) throws IOException {
+		byte[] magic = new byte[MAGIC_LENGTH];
+		int length = 0;
+
+		input.mark(MAGIC_LENGTH);
+		while (length < MAGIC_LENGTH) {
+			int count = input.read(magic, length, MAGIC_LENGTH - length);
+			if (count < 0) break;
+			length += count;
+		}
+		input.reset();
+
+		byte[] result = new byte[length];
+		System.arraycopy(magic, 0, result, 0, length);
+		return result;
+	}
+
+	private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+		if (length < prefix.length) return false;
+
+		for (int i = 0; i < prefix.length; ++i) {
+			if (data[i] != prefix[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the name of the archive file
+	 */
+	public abstract String getName();
+
+	public abstract boolean contains(String entry);
+
+	/**
+	 * @return the uncompressed size of the entry, or {@code -1} if it is not known
+	 */
+	public abstract long getSize(String entry);
+
+	/**
+	 * @return the CRC-32 of the entry, or {@code -1} if it is not known
+	 */
+	public abstract long getCrc(String entry);
+
+	/**
+	 * @return a number that grows with the position of the entry in the archive file, or
+	 * {@code -1} if it is not known. Reading entries in this order keeps reads sequential.
+	 */
+	public abstract long getOffset(String entry);
+
+	public abstract InputStream getInputStream(String entry) throws IOException;
+
+	/**
+	 * Reads a whole entry, mapping it into memory where possible.
+	 */
+	public abstract ByteBuffer read(String entry) throws IOException, AbortException;
+
+	/**
+	 * Writes an entry into a file.
+	 * @param digest the digest to update with the contents of the entry, or {@code null}
+	 * @return the size of the entry
+	 */
+	public long extract(String entry, Path destination, MessageDigest digest) throws IOException {
+		try (
+				InputStream inputStream = getInputStream(entry);
+				ReadableByteChannel inputChannel = (digest == null)
+						? Channels.newChannel(inputStream)
+						: Hashing.digesting(Channels.newChannel(inputStream), digest);
+		) {
+			return WriteStrategy.write(destination, getSize(entry), inputChannel);
+		}
+	}
+
+	/**
+	 * A ZIP archive.
+	 */
+	static class Zip extends Archive {
+		private final ZipFile zip;
+		private final ZipIndex index;
+
+		/**
+		 * The archive file for copying stored entries. Only positional reads are used, so the
+		 * channel is shared by all threads.
+		 */
+		private final FileChannel channel;
+
+		Zip(Path file) throws IOException {
+			this.zip = new ZipFile(file.toFile());
+
+			try {
+				this.index = ZipIndex.read(file);
+				this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			} catch (IOException | RuntimeException e) {
+				zip.close();
+				throw e;
+			}
+		}
+
+		ZipFile getZipFile() {
+			return zip;
+		}
+
+		@Override
+		public String getName() {
+			return zip.getName();
+		}
+
+		@Override
+		public boolean contains(String entry) {
+			return zip.getEntry(entry) != null;
+		}
+
+		@Override
+		public long getSize(String entry) {
+			ZipEntry e = zip.getEntry(entry);
+			return (e == null) ? -1 : e.getSize();
+		}
+
+		@Override
+		public long getCrc(String entry) {
+			ZipEntry e = zip.getEntry(entry);
+			return (e == null) ? -1 : e.getCrc();
+		}
+
+		@Override
+		public long getOffset(String entry) {
+			return index.getLocalHeaderOffset(entry);
+		}
+
+		@Override
+		public InputStream getInputStream(String entry) throws IOException {
+			ZipEntry e = zip.getEntry(entry);
+			if (e == null) throw new IOException("Entry " + entry + " not found in " + getName());
+			return zip.getInputStream(e);
+		}
+
+		/**
+		 * Maps the entry if it is stored uncompressed; otherwise inflates it into a heap buffer.
+		 */
+		@Override
+		public ByteBuffer read(String entry) throws IOException, AbortException {
+			ZipEntry e = zip.getEntry(entry);
+			if (e == null) throw new IOException("Entry " + entry + " not found in " + getName());
+
+			if (e.getSize() > Integer.MAX_VALUE) {
+				throw new AbortException("Entry " + entry + " of " + getName() + " is too large");
+			}
+
+			if (e.getMethod() == ZipEntry.STORED) {
+				long offset = index.getDataOffset(channel, entry);
+
+				if (offset >= 0) {
+					// The mapping stays valid after the channel is closed
+					return channel.map(FileChannel.MapMode.READ_ONLY, offset, e.getSize());
+				}
+			}
+
+			byte[] bytes = new byte[(int) e.getSize()];
+			try (DataInputStream inputStream = new DataInputStream(zip.getInputStream(e))) {
+				inputStream.readFully(bytes);
+			}
+
+			return ByteBuffer.wrap(bytes);
+		}
+
+		/**
+		 * Copies stored entries straight from the archive file to the destination so that the
+		 * kernel does the copy. Deflated entries are inflated through the heap as usual.
+		 */
+		@Override
+		public long extract(String entry, Path destination, MessageDigest digest) throws IOException {
+			ZipEntry e = zip.getEntry(entry);
+
+			if (e != null && e.getMethod() == ZipEntry.STORED) {
+				long offset = index.getDataOffset(channel, entry);
+
+				if (offset >= 0) {
+					return copy(offset, e.getSize(), destination, digest);
+				}
+			}
+
+			return super.extract(entry, destination, digest);
+		}
+
+		private long copy(long offset, long size, Path destination, MessageDigest digest) throws IOException {
+			WriteStrategy.write(destination, size, output -> {
+				long copied = 0;
+				while (copied < size) {
+					long count = channel.transferTo(offset + copied, size - copied, output);
+					if (count <= 0) {
+						throw new EOFException("Unexpected end of " + getName());
+					}
+					copied += count;
+				}
+				return copied;
+			});
+
+			if (digest != null) {
+				// The data was just read, so hashing it reads the page cache rather than the disk
+				Hashing.update(digest, channel, offset, size);
+			}
+
+			return size;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				zip.close();
+			}
+		}
+	}
+
+	/**
+	 * A possibly compressed tar archive unpacked into a spool directory.
+	 */
+	static class Tar extends Archive {
+		private final Path file;
+		private final Path spool;
+
+		/**
+		 * Entry names -> spooled files, numbered in archive order.
+		 */
+		private final Map<String, Path> entries = new HashMap<>();
+		private final Map<String, Long> crcs = new HashMap<>();
+
+		Tar(Path file) throws IOException {
+			this.file = file;
+
+			Files.createDirectories(Settings.getPartialDirectory());
+			this.spool = Files.createTempDirectory(Settings.getPartialDirectory(), Main.SHORT_NAME + "_spool");
+		}
+
+		private void spool() throws IOException, AbortException {
+			System.out.println("Decompressing " + file + "...");
+
+			try (InputStream input = Files.newInputStream(file)) {
+				TarReader tar = openTar(input);
+
+				while (tar.next()) {
+					if (tar.isDirectory()) continue;
+
+					if (entries.containsKey(tar.getName())) {
+						throw new AbortException("Malformed archive " + file + ": duplicate entry " + tar.getName());
+					}
+
+					Path spooled = spool.resolve(Integer.toString(entries.size()));
+					entries.put(tar.getName(), spooled);
+
+					CheckedInputStream data = new CheckedInputStream(tar.getInputStream(), new CRC32());
+					try (FileChannel output = FileChannel.open(spooled, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+						WriteStrategy.copy(Channels.newChannel(data), output);
+					}
+					crcs.put(tar.getName(), data.getChecksum().getValue());
+				}
+			}
+		}
+
+		@Override
+		public String getName() {
+			return file.toString();
+		}
+
+		@Override
+		public boolean contains(String entry) {
+			return entries.containsKey(entry);
+		}
+
+		@Override
+		public long getSize(String entry) {
+			Path spooled = entries.get(entry);
+			if (spooled == null) return -1;
+
+			try {
+				return Files.size(spooled);
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		@Override
+		public long getCrc(String entry) {
+			Long crc = crcs.get(entry);
+			return (crc == null) ? -1 : crc;
+		}
+
+		@Override
+		public long getOffset(String entry) {
+			Path spooled = entries.get(entry);
+			return (spooled == null) ? -1 : Long.parseLong(spooled.getFileName().toString());
+		}
+
+		@Override
+		public InputStream getInputStream(String entry) throws IOException {
+			Path spooled = entries.get(entry);
+			if (spooled == null) throw new IOException("Entry " + entry + " not found in " + getName());
+			return Files.newInputStream(spooled);
+		}
+
+		@Override
+		public ByteBuffer read(String entry) throws IOException, AbortException {
+			Path spooled = entries.get(entry);
+			if (spooled == null) throw new IOException("Entry " + entry + " not found in " + getName());
+
+			try (FileChannel channel = FileChannel.open(spooled, StandardOpenOption.READ)) {
+				if (channel.size() > Integer.MAX_VALUE) {
+					throw new AbortException("Entry " + entry + " of " + getName() + " is too large");
+				}
+
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+
+		/**
+		 * Deletes the spool directory. Mapped entries may keep their files locked on Windows, in
+		 * which case they are deleted on exit.
+		 */
+		@Override
+		public void close() throws IOException {
+			for (Path spooled : entries.values()) {
+				try {
+					Files.deleteIfExists(spooled);
+				} catch (IOException e) {
+					spooled.toFile().deleteOnExit();
+				}
+			}
+
+			try {
+				Files.deleteIfExists(spool);
+			} catch (IOException e) {
+				spool.toFile().deleteOnExit();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of downloaded artifacts shared by all installations of the current user.
+ * Entries are revalidated with the server using their ETag and Last-Modified values and are evicted
+ * in least recently used order once the total size exceeds the capacity.
+ */
+public class ArtifactCache {
+
+	private static final String DATA_SUFFIX = ".bin";
+	private static final String INFO_SUFFIX = ".properties";
+
+	public static class Entry {
+		private final Path data;
+		private final Path info;
+		private final String etag;
+		private final String lastModified;
+		private final String sha256;
+
+		private Entry(Path data, Path info, String etag, String lastModified, String sha256) {
+			this.data = data;
+			this.info = info;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.sha256 = sha256;
+		}
+
+		public Path getData() {
+			return data;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the SHA-256 of the data in hex, or {@code null} if it was not recorded
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+	}
+
+	private final Path directory;
+	private final long capacity;
+
+	public ArtifactCache(Path directory, long capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * @return the cached copy of the artifact or {@code null} if there is none
+	 */
+	public Entry get(URL source) throws IOException {
+		if (!isEnabled()) return null;
+
+		String key = Action.getFileName(source);
+		Path data = directory.resolve(key + DATA_SUFFIX);
+		Path info = directory.resolve(key + INFO_SUFFIX);
+
+		if (!Files.isRegularFile(data) || !Files.isRegularFile(info)) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(info, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		}
+
+		if (!source.toString().equals(properties.getProperty("url"))
+				|| !Long.toString(Files.size(data)).equals(properties.getProperty("size"))) {
+			System.out.println("Ignoring inconsistent cache entry " + data);
+			return null;
+		}
+
+		return new Entry(
+				data, info,
+				properties.getProperty("etag"), properties.getProperty("last-modified"),
+				properties.getProperty("sha256")
+		);
+	}
+
+	/**
+	 * Copies a cached artifact to the destination and marks it as recently used.
+	 */
+	public void copy(Entry entry, Path destination) throws IOException {
+		Files.copy(entry.data, destination, StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(entry.info, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Removes an entry, for example because it turned out to be corrupted.
+	 */
+	public void remove(Entry entry) throws IOException {
+		System.out.println("Removing " + entry.data + " from cache");
+		Files.deleteIfExists(entry.info);
+		Files.deleteIfExists(entry.data);
+	}
+
+	/**
+	 * Stores a copy of a freshly downloaded artifact. Artifacts without validators are not cached
+	 * since they could never be revalidated.
+	 * @param sha256 the SHA-256 of the file in hex, or {@code null} if it is not known
+	 */
+	public void store(URL source, Path file, String etag, String lastModified, String sha256) throws IOException {
+		if (!isEnabled()) return;
+		if (etag == null && lastModified == null) return;
+
+		long size = Files.size(file);
+		if (size > capacity) return;
+
+		Files.createDirectories(directory);
+
+		String key = Action.getFileName(source);
+		Path data = directory.resolve(key + DATA_SUFFIX);
+		Path info = directory.resolve(key + INFO_SUFFIX);
+
+		Files.deleteIfExists(info);
+
+		// Other processes may be storing the same artifact
+		Path tmp = Files.createTempFile(directory, key, DATA_SUFFIX + ".tmp");
+		try {
+			Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("url", source.toString());
+		if (etag != null) properties.setProperty("etag", etag);
+		if (lastModified != null) properties.setProperty("last-modified", lastModified);
+		if (sha256 != null) properties.setProperty("sha256", sha256);
+		properties.setProperty("size", Long.toString(size));
+
+		try (Writer writer = Files.newBufferedWriter(info, StandardCharsets.UTF_8)) {
+			properties.store(writer, Main.NAME + " cache entry");
+		}
+
+		evict();
+	}
+
+	/**
+	 * Removes least recently used entries until the cache fits its capacity.
+	 */
+	private void evict() throws IOException {
+		List<Path> infos;
+		try (Stream<Path> paths = Files.list(directory)) {
+			infos = paths
+					.filter(p -> p.getFileName().toString().endsWith(INFO_SUFFIX))
+					.collect(Collectors.toCollection(ArrayList::new));
+		}
+
+		List<FileTime> accessTimes = new ArrayList<>();
+		long total = 0;
+		for (Path info : infos) {
+			accessTimes.add(Files.getLastModifiedTime(info));
+			Path data = getData(info);
+			if (Files.exists(data)) total += Files.size(data);
+		}
+
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < infos.size(); ++i) order.add(i);
+		order.sort(Comparator.comparing(accessTimes::get));
+
+		for (int i : order) {
+			if (total <= capacity) break;
+
+			Path info = infos.get(i);
+			Path data = getData(info);
+
+			System.out.println("Evicting " + data + " from cache");
+			if (Files.exists(data)) total -= Files.size(data);
+
+			Files.deleteIfExists(info);
+			Files.deleteIfExists(data);
+		}
+	}
+
+	private static Path getData(Path info) {
+		String name = info.getFileName().toString();
+		return info.resolveSibling(name.substring(0, name.length() - INFO_SUFFIX.length()) + DATA_SUFFIX);
+	}
+
+}
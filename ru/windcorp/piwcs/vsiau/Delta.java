@@ -0,0 +1,119 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Applies binary deltas produced for the Patch command of update programs.
+ * <p>
+ * A delta starts with the ASCII magic {@code VSDF}, a format version byte (0) and the size of the
+ * result as a big-endian 64-bit integer. It is followed by instructions, each starting with an opcode
+ * byte:
+ * <ul>
+ * <li>{@code 0} - end of delta;</li>
+ * <li>{@code 1} - copy: a 64-bit offset and a 32-bit length; copies bytes of the old file;</li>
+ * <li>{@code 2} - add: a 32-bit length followed by that many bytes to append.</li>
+ * </ul>
+ * All integers are big-endian. The delta is expected to be compressed by the containing archive.
+ */
+public class Delta {
+
+	private static final int MAGIC = 0x56534446; // VSDF
+	private static final int FORMAT_VERSION = 0;
+
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_ADD = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes the result of applying a delta to the source into the destination.
+	 * @return the SHA-256 of the result in hex
+	 */
+	public static String apply(Path source, InputStream delta, Path destination) throws IOException, AbortException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(delta, BUFFER_SIZE));
+		MessageDigest digest = Hashing.newSha256();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		try (
+				FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel destChannel = WriteStrategy.create(destination, -1);
+		) {
+			if (input.readInt() != MAGIC || input.readUnsignedByte() != FORMAT_VERSION) {
+				throw new AbortException("Malformed delta: unknown format");
+			}
+
+			long size = input.readLong();
+			long sourceSize = sourceChannel.size();
+
+			while (true) {
+				int op = input.readUnsignedByte();
+
+				if (op == OP_END) {
+					break;
+				} else if (op == OP_COPY) {
+					long offset = input.readLong();
+					long length = input.readInt() & 0xFFFFFFFFL;
+
+					if (offset < 0 || offset + length > sourceSize) {
+						throw new AbortException("Malformed delta: copy outside of the old file");
+					}
+
+					for (long end = offset + length; offset < end; ) {
+						buffer.clear();
+						buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+
+						int read = sourceChannel.read(buffer, offset);
+						if (read < 0) throw new EOFException();
+						offset += read;
+
+						write(buffer, destChannel, digest);
+					}
+				} else if (op == OP_ADD) {
+					long remaining = input.readInt() & 0xFFFFFFFFL;
+
+					while (remaining > 0) {
+						int length = (int) Math.min(buffer.capacity(), remaining);
+						input.readFully(buffer.array(), 0, length);
+						buffer.position(length);
+						remaining -= length;
+
+						write(buffer, destChannel, digest);
+					}
+				} else {
+					throw new AbortException("Malformed delta: unknown opcode " + op);
+				}
+			}
+
+			if (destChannel.size() != size) {
+				throw new AbortException("Malformed delta: expected " + size
+						+ " bytes but produced " + destChannel.size());
+			}
+			
+			WriteStrategy.finish(destChannel, destination, size);
+		} catch (EOFException e) {
+			throw new AbortException("Malformed delta: unexpected end of data", e);
+		}
+
+		return Hashing.toHex(digest.digest());
+	}
+
+	private static void write(ByteBuffer buffer, FileChannel destChannel, MessageDigest digest) throws IOException {
+		buffer.flip();
+		digest.update(buffer.array(), 0, buffer.limit());
+
+		while (buffer.hasRemaining()) {
+			destChannel.write(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,722 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a single URL into a file. When the server accepts byte ranges the file is split into
+ * segments that are fetched over several concurrent connections; otherwise a single stream is used.
+ * Ranged downloads may be recorded in a {@link PartialDownload} sidecar and resumed later.
+ * <p>
+ * The same file may be available from several mirrors. They are used in the order given: when a
+ * connection fails or stays slower than the minimum speed, the download switches to the next mirror
+ * and continues where it stopped.
+ */
+public class Downloader {
+
+	private static final long MEBIBYTE = 1024 * 1024;
+	private static final long STEP = MEBIBYTE * 8;
+	
+	/**
+	 * The amount of data transferred at once while the speed of a connection is watched.
+	 */
+	private static final int METERED_STEP = 64 * 1024;
+	
+	/**
+	 * The period over which the speed of a connection is measured. Connections that receive nothing
+	 * for this long time out.
+	 */
+	private static final int STALL_WINDOW = 10_000;
+	
+	/**
+	 * The longest time in milliseconds between saves of the progress of a segment. Progress is also
+	 * saved after every {@link #STEP} bytes.
+	 */
+	private static final long SAVE_PERIOD = 1000;
+
+	private static class RangeNotSupportedException extends IOException {
+		private static final long serialVersionUID = 2915633410284733417L;
+
+		public RangeNotSupportedException(String message) {
+			super(message);
+		}
+	}
+
+	private static class StalledException extends IOException {
+		private static final long serialVersionUID = -3150528346254380374L;
+
+		public StalledException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * Measures the speed of a connection over windows of {@link #STALL_WINDOW}.
+	 */
+	private class Meter {
+		private long windowStart = System.nanoTime();
+		private long windowBytes = 0;
+		
+		public void add(long bytes) throws StalledException {
+			windowBytes += bytes;
+			
+			long elapsed = System.nanoTime() - windowStart;
+			if (elapsed < STALL_WINDOW * 1_000_000L) return;
+			
+			long speed = windowBytes * 1_000_000_000L / elapsed;
+			if (speed < minSpeed && hasFallback()) {
+				throw new StalledException(String.format("%.1f KiB/s", speed / 1024f));
+			}
+			
+			windowStart += elapsed;
+			windowBytes = 0;
+		}
+	}
+
+	private final List<URL> sources;
+	private final int connections;
+	private final long segmentSize;
+	
+	/**
+	 * The index of the source in use.
+	 */
+	private int current = 0;
+	
+	/**
+	 * The source that reported {@link #etag} and {@link #lastModified}.
+	 */
+	private URL probed = null;
+	
+	private long minSpeed = 0;
+
+	private long size = -1;
+	private String etag = null;
+	private String lastModified = null;
+	private boolean acceptsRanges = false;
+	private boolean notModified = false;
+	private String sha256 = null;
+	
+	private String cachedEtag = null;
+	private String cachedLastModified = null;
+
+	private long downloaded = 0;
+	private long reportedSteps = 0;
+	
+	/**
+	 * Bytes added to the expected and the done work of {@link Metrics.Phase#DOWNLOAD}.
+	 */
+	private long expected = 0;
+	private long metered = 0;
+
+	public Downloader(URL source, int connections, long segmentSize) {
+		this(Collections.singletonList(source), connections, segmentSize);
+	}
+	
+	/**
+	 * @param sources the mirrors of the file in the order they should be tried
+	 */
+	public Downloader(List<URL> sources, int connections, long segmentSize) {
+		this.sources = sources;
+		this.connections = connections;
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * Makes the download switch to the next mirror when a connection is slower than the given
+	 * speed. Has no effect on the last mirror.
+	 * @param bytesPerSecond the minimum speed, or 0 to only switch when a connection fails
+	 */
+	public void setMinSpeed(long bytesPerSecond) {
+		this.minSpeed = bytesPerSecond;
+	}
+
+	/**
+	 * Makes requests conditional on the artifact having changed since a cached copy was fetched.
+	 */
+	public void setValidators(String etag, String lastModified) {
+		this.cachedEtag = etag;
+		this.cachedLastModified = lastModified;
+	}
+
+	public boolean download(Path destination) throws IOException {
+		return download(destination, null);
+	}
+
+	/**
+	 * Downloads the source into the destination. If a sidecar is given, progress is recorded in it
+	 * and a previous interrupted download into the same destination is resumed when the server
+	 * still reports the same validators. The sidecar is removed once the download completes.
+	 * <p>
+	 * The download stops with an exception soon after the calling thread is interrupted; a
+	 * segmented download can then be resumed later like any other interrupted download.
+	 * @return {@code false} if the server reported that the artifact has not been modified since
+	 * the copy described by {@link #setValidators(String, String)}; nothing is downloaded then
+	 */
+	public boolean download(Path destination, Path sidecar) throws IOException {
+		try {
+			return downloadOrResume(destination, sidecar);
+		} catch (IOException e) {
+			discardExpected();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Downloads the beginning of the source into the destination and records it in the sidecar, so
+	 * that {@link #download(Path, Path)} later resumes from there. Nothing is downloaded if the
+	 * server does not accept byte ranges, because a single stream cannot be resumed.
+	 * @param limit the number of bytes to download, rounded up to whole segments
+	 */
+	public void prefetch(Path destination, Path sidecar, long limit) throws IOException {
+		try {
+			probe();
+			
+			if (notModified || !acceptsRanges || size <= 0) {
+				return;
+			}
+			
+			PartialDownload partial = preparePartial(destination, sidecar);
+			if (downloadSegmented(destination, partial, limit)) {
+				System.out.printf("Downloaded %.2f of %.2f MiB in the background%n",
+						partial.getCompletedBytes() / (float) MEBIBYTE,
+						size / (float) MEBIBYTE);
+			}
+		} catch (RangeNotSupportedException e) {
+			// The download proper falls back to a single connection
+		} catch (IOException e) {
+			discardExpected();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Takes back the part of {@link Metrics.Phase#DOWNLOAD} that a cancelled download will never
+	 * complete.
+	 */
+	private void discardExpected() {
+		if (!Thread.currentThread().isInterrupted()) return;
+		
+		synchronized (this) {
+			Metrics.Phase.DOWNLOAD.expect(-(expected - metered), 0);
+			expected = metered;
+		}
+	}
+	
+	private boolean downloadOrResume(Path destination, Path sidecar) throws IOException {
+		probe();
+		
+		if (notModified) {
+			return false;
+		}
+
+		if (acceptsRanges && size > 0) {
+			PartialDownload partial = preparePartial(destination, sidecar);
+
+			try {
+				downloadSegmented(destination, partial, Long.MAX_VALUE);
+				partial.delete();
+				return true;
+			} catch (RangeNotSupportedException e) {
+				System.out.println("Server does not honor Range requests (" + e.getMessage() + "), "
+						+ "falling back to a single connection");
+			}
+		}
+
+		if (sidecar != null) Files.deleteIfExists(sidecar);
+		return downloadSingle(destination);
+	}
+	
+	public String getEtag() {
+		return etag;
+	}
+	
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the SHA-256 of the downloaded file in hex if it was computed while downloading, or
+	 * {@code null}. Segmented downloads arrive out of order and are not hashed.
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+	
+	private void addConditions(URLConnection connection) {
+		if (cachedEtag != null) {
+			connection.setRequestProperty("If-None-Match", cachedEtag);
+		}
+		if (cachedLastModified != null) {
+			connection.setRequestProperty("If-Modified-Since", cachedLastModified);
+		}
+	}
+
+	private synchronized URL getSource() {
+		return sources.get(current);
+	}
+	
+	private synchronized boolean hasFallback() {
+		return current + 1 < sources.size();
+	}
+	
+	/**
+	 * Switches to the next source after a connection to the given source failed. Connections to
+	 * the same source that fail later do not skip any more sources.
+	 * @return {@code false} if there is no source left to try
+	 */
+	private synchronized boolean failover(URL failed, IOException e) {
+		if (Thread.currentThread().isInterrupted()) return false;
+		if (!sources.get(current).equals(failed)) return true;
+		if (!hasFallback()) return false;
+		
+		current++;
+		System.out.println("Download from " + failed + " failed (" + e + "), switching to " + sources.get(current));
+		return true;
+	}
+	
+	/**
+	 * Sets the timeouts of a connection so that a stalled mirror is noticed while there are others
+	 * to switch to.
+	 */
+	private void configure(URLConnection connection) {
+		if (hasFallback()) {
+			connection.setConnectTimeout(STALL_WINDOW);
+			connection.setReadTimeout(STALL_WINDOW);
+		}
+	}
+
+	private void probe() throws IOException {
+		while (true) {
+			URL source = getSource();
+			
+			try {
+				probe(source);
+				return;
+			} catch (IOException e) {
+				if (!failover(source, e)) throw e;
+			}
+		}
+	}
+
+	private void probe(URL source) throws IOException {
+		URLConnection connection = source.openConnection();
+
+		if (!(connection instanceof HttpURLConnection)) {
+			return;
+		}
+
+		HttpURLConnection http = (HttpURLConnection) connection;
+		http.setRequestMethod("HEAD");
+		configure(http);
+		addConditions(http);
+
+		try {
+			if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				notModified = true;
+				return;
+			}
+			
+			if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				return;
+			}
+
+			size = http.getContentLengthLong();
+			etag = http.getHeaderField("ETag");
+			lastModified = http.getHeaderField("Last-Modified");
+			acceptsRanges = "bytes".equalsIgnoreCase(http.getHeaderField("Accept-Ranges"));
+			probed = source;
+		} finally {
+			http.disconnect();
+		}
+	}
+
+	private PartialDownload preparePartial(Path destination, Path sidecar) throws IOException {
+		String url = probed.toString();
+
+		if (sidecar != null && Files.exists(destination)) {
+			PartialDownload previous = PartialDownload.load(sidecar);
+
+			if (previous != null) {
+				if (previous.matches(url, etag, lastModified, size) && Files.size(destination) == size) {
+					System.out.printf("Resuming interrupted download: %.2f of %.2f MiB already present%n",
+							previous.getCompletedBytes() / (float) MEBIBYTE,
+							size / (float) MEBIBYTE);
+					return previous;
+				}
+
+				System.out.println("Discarding interrupted download of " + url + ": file has changed on server");
+			}
+		}
+
+		Files.deleteIfExists(destination);
+
+		PartialDownload result = new PartialDownload(sidecar, url, etag, lastModified, size);
+		result.save();
+		return result;
+	}
+
+	private boolean downloadSingle(Path destination) throws IOException {
+		MessageDigest digest = Hashing.newSha256();
+		long[] position = { 0 };
+		
+		downloaded = 0;
+		reportedSteps = 0;
+
+		try (
+				FileChannel destChannel = FileChannel.open(destination,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		) {
+			while (true) {
+				URL source = getSource();
+				
+				try {
+					if (!downloadStream(source, destChannel, digest, position)) {
+						return false;
+					}
+					break;
+				} catch (IOException e) {
+					if (!failover(source, e)) throw e;
+				}
+			}
+		}
+
+		sha256 = Hashing.toHex(digest.digest());
+
+		reportComplete();
+		return true;
+	}
+	
+	/**
+	 * Downloads the rest of the file from a source, starting at the given position and advancing it
+	 * as data is written. A source that cannot continue where the previous one stopped is read from
+	 * the start.
+	 * @return {@code false} if the source reported that the artifact has not been modified
+	 */
+	private boolean downloadStream(URL source, FileChannel destChannel, MessageDigest digest, long[] position)
+			throws IOException {
+		URLConnection connection = source.openConnection();
+		configure(connection);
+		
+		if (position[0] == 0) {
+			addConditions(connection);
+		} else {
+			connection.setRequestProperty("Range", "bytes=" + position[0] + "-");
+		}
+		
+		if (connection instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection) connection).getResponseCode();
+			
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				((HttpURLConnection) connection).disconnect();
+				return false;
+			}
+			
+			if (position[0] > 0 && code != HttpURLConnection.HTTP_PARTIAL) {
+				System.out.println("Cannot resume the download from " + source + ", starting over");
+				restart(destChannel, digest, position);
+			} else if (position[0] > 0 && !continues(connection.getHeaderField("Content-Range"), position[0])) {
+				// The source may have another version of the file, which must not be spliced onto this one
+				System.out.println("Cannot resume the download from " + source + " (Content-Range "
+						+ connection.getHeaderField("Content-Range") + "), starting over");
+				((HttpURLConnection) connection).disconnect();
+				restart(destChannel, digest, position);
+				return downloadStream(source, destChannel, digest, position);
+			}
+			
+			if (position[0] == 0) {
+				etag = connection.getHeaderField("ETag");
+				lastModified = connection.getHeaderField("Last-Modified");
+			}
+		}
+		
+		if (position[0] == 0) {
+			size = connection.getContentLengthLong();
+			expect(Math.max(0, size));
+		}
+		
+		Meter meter = hasFallback() ? new Meter() : null;
+		
+		// Data is only hashed once it has been read, so the digest always matches what was written
+		try (
+				ReadableByteChannel sourceChannel = Hashing.digesting(
+						Channels.newChannel(connection.getInputStream()), digest);
+		) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(METERED_STEP);
+			
+			while (sourceChannel.read(buffer) >= 0) {
+				buffer.flip();
+				
+				long transferred = buffer.remaining();
+				while (buffer.hasRemaining()) {
+					position[0] += destChannel.write(buffer, position[0]);
+				}
+				buffer.clear();
+				
+				reportProgress(transferred);
+				if (meter != null) meter.add(transferred);
+			}
+		}
+		
+		if (size >= 0 && position[0] < size) {
+			throw new IOException("Connection closed at byte " + position[0] + " of " + size);
+		}
+		
+		return true;
+	}
+
+	/**
+	 * @return {@code true} if a Content-Range header describes the rest of this file from the given
+	 * position
+	 */
+	private boolean continues(String contentRange, long position) {
+		return contentRange != null
+				&& size >= 0
+				&& contentRange.startsWith("bytes " + position + "-")
+				&& contentRange.endsWith("/" + size);
+	}
+	
+	/**
+	 * Discards what a single-stream download has written so far.
+	 */
+	private void restart(FileChannel destChannel, MessageDigest digest, long[] position) throws IOException {
+		position[0] = 0;
+		digest.reset();
+		destChannel.truncate(0);
+		downloaded = 0;
+		reportedSteps = 0;
+	}
+
+	/**
+	 * Downloads the missing segments that start before the limit.
+	 * @return {@code true} if segments remain missing after the limit
+	 */
+	private boolean downloadSegmented(Path destination, PartialDownload partial, long limit) throws IOException {
+		final List<long[]> segments = new ArrayList<>();
+		boolean truncated = false;
+		long total = 0;
+		
+		for (long[] missing : partial.getMissing()) {
+			for (long start = missing[0]; start < missing[1]; start += segmentSize) {
+				if (start >= limit) {
+					truncated = true;
+					break;
+				}
+				
+				long end = Math.min(start + segmentSize, missing[1]);
+				segments.add(new long[] { start, end });
+				total += end - start;
+			}
+		}
+
+		final int threads = Math.max(1, Math.min(connections, segments.size()));
+		downloaded = partial.getCompletedBytes();
+		expect(total);
+
+		if (segments.size() > 1) {
+			System.out.println("Downloading " + segments.size() + " segments over " + threads + " connections");
+		}
+
+		ExecutorService executor = Workers.newPool(threads, "download");
+
+		try (
+				FileChannel destChannel = FileChannel.open(destination,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		) {
+			// transferFrom does not write past the end of the file, so extend it first
+			if (destChannel.size() != size) {
+				destChannel.truncate(0);
+				destChannel.write(ByteBuffer.allocate(1), size - 1);
+			}
+			
+			AtomicInteger nextSegment = new AtomicInteger();
+			List<Future<Void>> workers = new ArrayList<>();
+
+			for (int i = 0; i < threads; ++i) {
+				workers.add(executor.submit(() -> {
+					int segment;
+					while ((segment = nextSegment.getAndIncrement()) < segments.size()) {
+						long[] range = segments.get(segment);
+						downloadSegment(destChannel, range[0], range[1], partial);
+					}
+					return null;
+				}));
+			}
+
+			for (Future<Void> worker : workers) {
+				Workers.await(worker);
+			}
+		} catch (AbortException e) {
+			throw new IOException("Could not download " + getSource(), e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (truncated) return true;
+		
+		reportComplete();
+		return false;
+	}
+
+	/**
+	 * Downloads bytes [start; end) of the file into the same region of the destination, switching
+	 * sources as needed.
+	 */
+	private void downloadSegment(
+			FileChannel destChannel,
+			long start, long end,
+			PartialDownload partial
+	) throws IOException {
+		long[] position = { start };
+		
+		while (true) {
+			URL source = getSource();
+			
+			try {
+				downloadRange(source, destChannel, position, end, partial);
+				return;
+			} catch (RangeNotSupportedException e) {
+				// The probed source does not honor ranges after all; other mirrors may just be broken
+				if (source.equals(probed) || !failover(source, e)) throw e;
+			} catch (IOException e) {
+				if (!failover(source, e)) throw e;
+			}
+		}
+	}
+
+	/**
+	 * Downloads bytes [position; end) of a source into the same region of the destination,
+	 * advancing the position as data is written.
+	 */
+	private void downloadRange(
+			URL source,
+			FileChannel destChannel,
+			long[] position, long end,
+			PartialDownload partial
+	) throws IOException {
+		long start = position[0];
+		
+		HttpURLConnection connection = (HttpURLConnection) source.openConnection();
+		configure(connection);
+		connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+		
+		// Validators are only meaningful to the server that issued them
+		if (partial.getValidator() != null && source.equals(probed)) {
+			connection.setRequestProperty("If-Range", partial.getValidator());
+		}
+
+		try {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				throw new RangeNotSupportedException("HTTP " + connection.getResponseCode());
+			}
+
+			String contentRange = connection.getHeaderField("Content-Range");
+			if (contentRange == null || !contentRange.startsWith("bytes " + start + "-")) {
+				throw new RangeNotSupportedException("unexpected Content-Range " + contentRange);
+			}
+			
+			if (!contentRange.endsWith("/" + size) && !contentRange.endsWith("/*")) {
+				throw new IOException(source + " has a different version of the file: Content-Range " + contentRange);
+			}
+			
+			Meter meter = hasFallback() ? new Meter() : null;
+			long step = (meter == null) ? STEP : METERED_STEP;
+			
+			// The sidecar is rewritten completely, so it is not saved after every metered step
+			long unsaved = 0;
+			long saved = System.currentTimeMillis();
+
+			try (
+					InputStream inputStream = connection.getInputStream();
+					ReadableByteChannel sourceChannel = Channels.newChannel(inputStream);
+			) {
+				while (position[0] < end) {
+					long transferred = destChannel.transferFrom(
+							sourceChannel, position[0], Math.min(step, end - position[0])
+					);
+
+					if (transferred == 0) {
+						throw new IOException("Connection closed at byte " + position[0]
+								+ " of segment " + start + "-" + (end - 1));
+					}
+
+					partial.complete(position[0], position[0] + transferred);
+					unsaved += transferred;
+					
+					long now = System.currentTimeMillis();
+					if (unsaved >= STEP || now - saved >= SAVE_PERIOD) {
+						partial.save();
+						unsaved = 0;
+						saved = now;
+					}
+					
+					position[0] += transferred;
+					reportProgress(transferred);
+					if (meter != null) meter.add(transferred);
+				}
+			} catch (IOException e) {
+				// Keep what has been received for the next attempt
+				if (unsaved > 0) {
+					try {
+						partial.save();
+					} catch (IOException s) {
+						e.addSuppressed(s);
+					}
+				}
+				throw e;
+			}
+			
+			if (unsaved > 0) partial.save();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private synchronized void expect(long bytes) {
+		expected += bytes;
+		Metrics.Phase.DOWNLOAD.expect(bytes, 0);
+	}
+
+	private synchronized void reportProgress(long transferred) throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Download cancelled");
+		}
+		
+		downloaded += transferred;
+		metered += transferred;
+		Metrics.Phase.DOWNLOAD.add(transferred, 0);
+		
+		long steps = (downloaded == size) ? (size - 1) / STEP + 1 : downloaded / STEP;
+		if (steps == reportedSteps) {
+			return;
+		}
+		reportedSteps = steps;
+
+		System.out.printf("  %-2d / %s MiB%n",
+				steps,
+				(size >= 0) ? Long.toString((size - 1) / STEP + 1) : "?");
+	}
+
+	private void reportComplete() {
+		Metrics.Phase.DOWNLOAD.add(0, 1);
+		System.out.printf("Download complete (%.2f MiB)%n", downloaded / (float) MEBIBYTE);
+	}
+
+}
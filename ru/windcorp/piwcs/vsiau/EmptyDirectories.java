@@ -0,0 +1,129 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Follows which directories of an installation become empty as the instructions of an update
+ * program are applied in program order. Directories are only pruned when the transaction is
+ * committed; this lets each deletion report the directories it empties as it is made. Each
+ * directory is listed at most once. Not thread-safe.
+ */
+public class EmptyDirectories {
+
+	private final Transaction tx;
+
+	/**
+	 * Current entries of the directories listed so far.
+	 */
+	private final Map<Path, Set<Path>> listings = new HashMap<>();
+
+	/**
+	 * Entries created ({@code true}) or deleted ({@code false}) in directories not listed yet.
+	 */
+	private final Map<Path, Map<Path, Boolean>> pending = new HashMap<>();
+
+	/**
+	 * Paths deleted and not created again.
+	 */
+	private final Set<Path> removed = new HashSet<>();
+
+	public EmptyDirectories(Transaction tx) {
+		this.tx = tx;
+	}
+
+	/**
+	 * Records that a file is created, along with its parent directories.
+	 */
+	public void created(Path path) {
+		path = path.normalize();
+		removed.remove(path);
+
+		for (Path dir = path.getParent(); dir != null; path = dir, dir = dir.getParent()) {
+			removed.remove(dir);
+			update(dir, path, true);
+		}
+	}
+
+	/**
+	 * Records that a file or an empty directory is deleted. Directories that are not empty are
+	 * kept.
+	 * @return the directories that become empty and are deleted as well, deepest first. The path
+	 * itself is included if it is an empty directory
+	 */
+	public List<Path> deleted(Path path) throws IOException {
+		path = path.normalize();
+		List<Path> emptied = new ArrayList<>();
+
+		if (!removed.add(path)) return emptied;
+
+		Path resolved = tx.resolve(path);
+		if (resolved != null && Files.isDirectory(resolved)) {
+			if (!list(path).isEmpty()) {
+				removed.remove(path);
+				return emptied;
+			}
+			emptied.add(path);
+		}
+
+		for (Path dir = path.getParent(); dir != null; path = dir, dir = dir.getParent()) {
+			update(dir, path, false);
+			if (!list(dir).isEmpty()) break;
+
+			removed.add(dir);
+			emptied.add(dir);
+		}
+
+		return emptied;
+	}
+
+	private void update(Path dir, Path entry, boolean exists) {
+		Set<Path> entries = listings.get(dir);
+
+		if (entries == null) {
+			pending.computeIfAbsent(dir, d -> new HashMap<>()).put(entry, exists);
+		} else if (exists) {
+			entries.add(entry);
+		} else {
+			entries.remove(entry);
+		}
+	}
+
+	private Set<Path> list(Path dir) throws IOException {
+		Set<Path> entries = listings.get(dir);
+		if (entries != null) return entries;
+
+		Set<Path> result = new HashSet<>();
+
+		Path resolved = tx.resolve(dir);
+		if (resolved != null && Files.isDirectory(resolved)) {
+			try (Stream<Path> stream = Files.list(resolved)) {
+				stream.forEach(entry -> result.add(dir.resolve(entry.getFileName())));
+			}
+		}
+
+		// Instructions seen before the directory was listed
+		Map<Path, Boolean> changes = pending.remove(dir);
+		if (changes != null) {
+			changes.forEach((entry, exists) -> {
+				if (exists) {
+					result.add(entry);
+				} else {
+					result.remove(entry);
+				}
+			});
+		}
+
+		listings.put(dir, result);
+		return result;
+	}
+
+}
@@ -0,0 +1,185 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the CRC-32 of installed files so that files that already have the contents an archive
+ * entry would give them are not written again.
+ * <p>
+ * The index is stored in the installation directory. Each line except the first one, which holds
+ * the format version, describes a file as {@code <CRC-32 in hex>\t<size>\t<modification time in
+ * milliseconds>\t<path>}. An entry is only trusted while the size and the modification time of the
+ * file match; otherwise the CRC-32 is computed again when it is needed.
+ */
+public class FileStates {
+
+	private static final String FILE_NAME = Main.SHORT_NAME + "_state";
+	private static final String FORMAT_VERSION = "0";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static class State {
+		final long size;
+		final long modified;
+		final long crc;
+
+		State(long size, long modified, long crc) {
+			this.size = size;
+			this.modified = modified;
+			this.crc = crc;
+		}
+	}
+
+	private final Path root;
+	private final Path file;
+	private final Map<Path, State> states = new HashMap<>();
+	private boolean dirty = false;
+
+	private FileStates(Path root) {
+		this.root = root;
+		this.file = root.resolve(FILE_NAME);
+	}
+
+	/**
+	 * Reads the index of the installation in the given directory. A missing or unreadable index is
+	 * treated as empty.
+	 */
+	public static FileStates load(Path root) throws IOException {
+		FileStates result = new FileStates(root);
+		if (Files.notExists(result.file)) return result;
+
+		List<String> lines = Files.readAllLines(result.file, StandardCharsets.UTF_8);
+		if (lines.isEmpty() || !lines.get(0).equals(FORMAT_VERSION)) {
+			System.out.println("Ignoring file state index " + result.file + " of an unknown format");
+			return result;
+		}
+
+		try {
+			for (String line : lines.subList(1, lines.size())) {
+				if (line.isEmpty()) continue;
+
+				String[] parts = line.split("\t", 4);
+				result.states.put(
+						root.getFileSystem().getPath(parts[3]),
+						new State(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[0], 16))
+				);
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Ignoring malformed file state index " + result.file);
+			result.states.clear();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Checks whether a file has the given contents.
+	 * @param path the file relative to the installation directory
+	 * @return {@code true} if the file exists and has the given size and CRC-32
+	 */
+	public boolean matches(Path path, long size, long crc) throws IOException {
+		path = path.normalize();
+
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(root.resolve(path), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+
+		if (!attributes.isRegularFile() || attributes.size() != size) return false;
+
+		long modified = attributes.lastModifiedTime().toMillis();
+		State state;
+		synchronized (this) {
+			state = states.get(path);
+		}
+
+		if (state == null || state.size != size || state.modified != modified) {
+			state = new State(size, modified, computeCrc(root.resolve(path)));
+
+			synchronized (this) {
+				states.put(path, state);
+				dirty = true;
+			}
+		}
+
+		return state.crc == crc;
+	}
+
+	/**
+	 * Remembers the CRC-32 of a file that has just been written.
+	 * @param path the file relative to the installation directory
+	 */
+	public void record(Path path, long crc) throws IOException {
+		path = path.normalize();
+		BasicFileAttributes attributes = Files.readAttributes(root.resolve(path), BasicFileAttributes.class);
+		State state = new State(attributes.size(), attributes.lastModifiedTime().toMillis(), crc);
+
+		synchronized (this) {
+			states.put(path, state);
+			dirty = true;
+		}
+	}
+
+	public synchronized void remove(Path path) {
+		if (states.remove(path.normalize()) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Writes the index if it has changed. Entries of files that no longer exist are dropped.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) return;
+
+		Map<String, State> sorted = new TreeMap<>();
+		for (Map.Entry<Path, State> entry : states.entrySet()) {
+			if (Files.isRegularFile(root.resolve(entry.getKey()))) {
+				sorted.put(entry.getKey().toString(), entry.getValue());
+			}
+		}
+
+		Path tmp = root.resolve(FILE_NAME + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			writer.write(FORMAT_VERSION + "\n");
+
+			for (Map.Entry<String, State> entry : sorted.entrySet()) {
+				State state = entry.getValue();
+				writer.write(Long.toHexString(state.crc) + "\t" + state.size + "\t" + state.modified + "\t" + entry.getKey() + "\n");
+			}
+		}
+
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	private static long computeCrc(Path path) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		try (InputStream input = Files.newInputStream(path)) {
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				crc.update(buffer, 0, read);
+			}
+		}
+
+		return crc.getValue();
+	}
+
+}
@@ -4,21 +4,52 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.Font;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultCaret;
 
 public class Gui {
 	
+	/**
+	 * Milliseconds between appends to the log window.
+	 */
+	private static final int LOG_PERIOD = 50;
+	
+	/**
+	 * The number of lines the log window keeps; older lines are discarded.
+	 */
+	private static final int LOG_LINES = 5000;
+	
+	private static final int PROGRESS_MAX = 1000;
+	
 	private final JFrame frame;
 	private JTextArea textArea;
+	private JProgressBar progressBar;
+	
+	/**
+	 * Lines waiting to be appended to the log window. At most {@link #LOG_LINES} are kept, as the
+	 * window would discard older ones anyway. Guarded by itself.
+	 */
+	private final Deque<String> pendingLog = new ArrayDeque<>();
+	
+	/**
+	 * The number of lines dropped from {@link #pendingLog} since the last append.
+	 */
+	private long droppedLines = 0;
 	
 	public static void init() throws Exception {
+		// The network would be idle while the dialog is open
+		Prefetch.start(Main.getActions());
 		chooseAction();
 		showLog();
 	}
@@ -46,6 +77,7 @@ public class Gui {
 		}
 		
 		Main.setAction(Main.getActions().get(result));
+		Prefetch.retain(Main.getActions().get(result));
 	}
 	
 	private static void showLog() throws Exception {
@@ -57,9 +89,15 @@ public class Gui {
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		
 		frame.getContentPane().add(createLogWindow(), BorderLayout.CENTER);
+		frame.getContentPane().add(createProgressBar(), BorderLayout.SOUTH);
 		
 		frame.pack();
 		frame.setVisible(true);
+		
+		new Timer(LOG_PERIOD, e -> {
+			appendLog();
+			updateProgress();
+		}).start();
 	}
 
 	private Container createLogWindow() {
@@ -85,8 +123,91 @@ public class Gui {
 		return scrollPane;
 	}
 	
+	private JProgressBar createProgressBar() {
+		progressBar = new JProgressBar(0, PROGRESS_MAX);
+		progressBar.setStringPainted(true);
+		progressBar.setString("");
+		return progressBar;
+	}
+	
+	/**
+	 * Queues text for the log window. May be called from any thread.
+	 */
 	public void log(String text) {
-		textArea.append(text);
+		synchronized (pendingLog) {
+			for (int start = 0; start < text.length(); ) {
+				int end = text.indexOf('\n', start) + 1;
+				if (end == 0) end = text.length();
+				
+				if (pendingLog.size() == LOG_LINES) {
+					pendingLog.removeFirst();
+					droppedLines++;
+				}
+				
+				pendingLog.addLast(text.substring(start, end));
+				start = end;
+			}
+		}
+	}
+	
+	private void appendLog() {
+		StringBuilder sb = new StringBuilder();
+		
+		synchronized (pendingLog) {
+			if (pendingLog.isEmpty()) return;
+			
+			if (droppedLines > 0) {
+				sb.append("(").append(droppedLines).append(" lines not shown)\n");
+				droppedLines = 0;
+			}
+			
+			for (String line : pendingLog) {
+				sb.append(line);
+			}
+			pendingLog.clear();
+		}
+		
+		textArea.append(sb.toString());
+		
+		int excess = textArea.getLineCount() - LOG_LINES;
+		if (excess > 0) {
+			try {
+				textArea.replaceRange("", 0, textArea.getLineStartOffset(excess));
+			} catch (BadLocationException e) {
+				throw new AssertionError(e);
+			}
+		}
+	}
+	
+	private void updateProgress() {
+		Metrics.Phase phase = Metrics.getCurrent();
+		if (phase == null) return;
+		
+		StringBuilder sb = new StringBuilder(phase.getTitle());
+		double progress = phase.getProgress();
+		
+		if (progress < 0) {
+			progressBar.setIndeterminate(true);
+		} else {
+			progressBar.setIndeterminate(false);
+			progressBar.setValue((int) (progress * PROGRESS_MAX));
+			sb.append(String.format(": %d%%", (int) (progress * 100)));
+		}
+		
+		double byteRate = phase.getByteRate();
+		if (byteRate > 0) {
+			sb.append(String.format(", %.1f MiB/s", byteRate / (1024 * 1024)));
+		} else {
+			double entryRate = phase.getEntryRate();
+			if (entryRate > 0) sb.append(String.format(", %.0f files/s", entryRate));
+		}
+		
+		long remaining = phase.getRemainingSeconds();
+		if (remaining >= 0 && progress < 1) {
+			sb.append(String.format(", %d:%02d left", remaining / 60, remaining % 60));
+		}
+		
+		progressBar.setString(sb.toString());
 	}
 
 }
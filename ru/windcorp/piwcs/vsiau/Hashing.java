@@ -0,0 +1,144 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class Hashing {
+
+	/**
+	 * Updates a digest with every byte read through it, so that data is hashed in the same buffers
+	 * that it is copied in.
+	 */
+	private static class DigestingChannel implements ReadableByteChannel {
+		private final ReadableByteChannel channel;
+		private final MessageDigest digest;
+
+		public DigestingChannel(ReadableByteChannel channel, MessageDigest digest) {
+			this.channel = channel;
+			this.digest = digest;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			int read = channel.read(dst);
+
+			if (read > 0) {
+				ByteBuffer view = dst.duplicate();
+				view.flip().position(start);
+				digest.update(view);
+			}
+
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+	private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new AssertionError(e);
+		}
+	}
+
+	public static String sha256(Path file) throws IOException {
+		MessageDigest digest = newSha256();
+		byte[] buffer = new byte[64 * 1024];
+
+		try (InputStream input = Files.newInputStream(file)) {
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Hashes a file through memory mappings of up to {@value #MAP_WINDOW} bytes, which saves copying
+	 * large files through a buffer. Small files are read into a buffer through the same channel.
+	 */
+	public static String sha256Mapped(Path file) throws IOException {
+		MessageDigest digest = newSha256();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			update(digest, channel, 0, channel.size());
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Updates a digest with a region of a file. Regions of {@value #MAP_THRESHOLD} bytes and more
+	 * are hashed through memory mappings, smaller ones are read into a buffer.
+	 */
+	public static void update(MessageDigest digest, FileChannel channel, long position, long size) throws IOException {
+		if (size < MAP_THRESHOLD) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException("Unexpected end of file");
+				}
+			}
+
+			buffer.flip();
+			digest.update(buffer);
+			return;
+		}
+
+		for (long offset = 0; offset < size; offset += MAP_WINDOW) {
+			digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(MAP_WINDOW, size - offset)));
+		}
+	}
+
+	public static ReadableByteChannel digesting(ReadableByteChannel channel, MessageDigest digest) {
+		return new DigestingChannel(channel, digest);
+	}
+
+	/**
+	 * @throws AbortException if the actual hash is not the expected one
+	 */
+	public static void check(String what, String actual, String expected) throws AbortException {
+		if (!actual.equalsIgnoreCase(expected)) {
+			throw new AbortException(what + " is corrupted: SHA-256 is " + actual + ", expected " + expected
+					+ ". Please try again");
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		char[] result = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(result);
+	}
+
+}
@@ -1,5 +1,7 @@
 package ru.windcorp.piwcs.vsiau;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,14 +18,16 @@ public class Main {
 	public static void main(String[] args) throws Exception {
 		registerActions();
 		
-		if (args.length == 1) {
+		List<String> arguments = Settings.parse(args);
+		
+		if (arguments != null && arguments.size() == 1) {
 			ACTIONS.stream()
-				.filter(a -> a.getName().equalsIgnoreCase(args[0]))
+				.filter(a -> a.getName().equalsIgnoreCase(arguments.get(0)))
 				.findAny()
 				.ifPresent(Main::setAction);
 		}
 		
-		if (action == null && args.length != 0) {
+		if (action == null && (arguments == null || !arguments.isEmpty())) {
 			printUsage();
 			System.exit(0);
 		}
@@ -37,27 +41,47 @@ public class Main {
 		
 		printHeader();
 		
+		// Installed after the GUI so that it shows the output of workers in order too
+		System.setOut(new PrintStream(new TaskOutputStream(System.out), true));
+		
 		try {
 			System.out.println("Running action " + action.getName());
+			
+			if (Settings.hasTargets() && !action.supportsTargets()) {
+				throw new AbortException("Action " + action.getName() + " does not support --target, "
+						+ "run it in the installation directory instead");
+			}
+			
 			action.run();
+			writeReport("success", null);
 			System.out.println();
 			System.out.println("Done");
 		} catch (AbortException e) {
+			writeReport("aborted", e.getMessage());
 			System.out.println("=====");
 			System.out.println(e.getMessage());
 			System.out.println("=====");
 			System.out.println("Cannot proceed, terminating");
 			System.in.read();
 		} catch (Exception e) {
+			writeReport("failed", e.toString());
 			e.printStackTrace();
 			System.out.println("An unrecoverable error has occurred, terminating");
 			System.in.read();
 		}
 	}
 	
+	private static void writeReport(String result, String message) {
+		try {
+			Metrics.writeReport(Settings.getReportFile(), action, result, message);
+		} catch (IOException e) {
+			System.out.println("Could not write report " + Settings.getReportFile() + ": " + e);
+		}
+	}
+	
 	private static void printUsage() {
 		printHeader();
-		System.out.println("Operates in working directory");
+		System.out.println("Operates in working directory unless --target is given");
 		System.out.print("Usage: ");
 		
 		boolean first = true;
@@ -71,12 +95,16 @@ public class Main {
 			System.out.print("\"" + a.getName() + "\"");
 		}
 		
-		System.out.println();
+		System.out.println(" [options]");
+		Settings.printUsage();
 	}
 
 	private static void registerActions() {
 		ACTIONS.add(new ActionInstall());
 		ACTIONS.add(new ActionUpdate());
+		ACTIONS.add(new ActionSync());
+		ACTIONS.add(new ActionVerify());
+		ACTIONS.add(new ActionServe());
 	}
 	
 	public static List<Action> getActions() {
@@ -95,7 +123,8 @@ public class Main {
 		System.out.println(NAME + " is licensed under GNU GPL v3-or-later.");
 		System.out.println("This is free software, and you are welcome to redistribute it.");
 		System.out.println("This program comes with ABSOLUTELY NO WARRANTY. For details please refer to the license.");
-		System.out.println("In particular, this program make NO attempt to check the integrity or authenticity of downloaded executable files.");
+		System.out.println("In particular, this program makes NO attempt to check the authenticity of downloaded executable files. "
+				+ "Their integrity is only checked when the server publishes checksums.");
 		System.out.println();
 	}
 
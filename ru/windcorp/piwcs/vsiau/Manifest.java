@@ -0,0 +1,144 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The list of files that make up one version of the modpack.
+ * <p>
+ * A manifest is a UTF-8 text file. The first line holds the syntax version, the second line holds
+ * the modpack version and every following line describes a file as
+ * {@code <SHA-256 in hex>; <size in bytes>; <path>}. Paths are relative to the installation
+ * directory, use {@code /} as separator and must lie within {@code mods/} or {@code config/}.
+ */
+public class Manifest {
+
+	public static class FileInfo {
+		private final String path;
+		private final long size;
+		private final String sha256;
+
+		public FileInfo(String path, long size, String sha256) {
+			this.path = path;
+			this.size = size;
+			this.sha256 = sha256;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getSha256() {
+			return sha256;
+		}
+	}
+
+	private static final String SYNTAX_VERSION = "0";
+	private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+	private final String version;
+	private final Map<String, FileInfo> files = new LinkedHashMap<>();
+
+	private Manifest(String version) {
+		this.version = version;
+	}
+
+	public static Manifest read(Path file) throws IOException, AbortException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String syntaxVersion = reader.readLine();
+			if (!SYNTAX_VERSION.equals(syntaxVersion)) {
+				throw new AbortException("This updater cannot read the manifest because the updater is outdated. "
+						+ "Get the newest updater. "
+						+ "Required syntax version: " + syntaxVersion);
+			}
+
+			String version = reader.readLine();
+			if (version == null || version.isEmpty()) {
+				throw new AbortException("Malformed manifest: version not found");
+			}
+
+			Manifest manifest = new Manifest(version);
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				manifest.add(parseLine(line));
+			}
+
+			return manifest;
+		}
+	}
+
+	private static FileInfo parseLine(String line) throws AbortException {
+		String[] parts = line.split("; ", 3);
+
+		if (parts.length != 3) {
+			throw new AbortException("Malformed manifest: cannot parse line \"" + line + "\"");
+		}
+
+		if (!SHA256.matcher(parts[0]).matches()) {
+			throw new AbortException("Malformed manifest: invalid SHA-256 \"" + parts[0] + "\"");
+		}
+
+		long size;
+		try {
+			size = Long.parseLong(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new AbortException("Malformed manifest: invalid size \"" + parts[1] + "\"");
+		}
+
+		Path path = Paths.get(parts[2]).normalize();
+		if (path.startsWith("..") || path.isAbsolute()
+				|| !(path.startsWith("mods") || path.startsWith("config"))
+				|| path.getNameCount() < 2) {
+			throw new AbortException("Path \"" + parts[2] + "\" is not within mods or config. "
+					+ "Aborting as a security measure");
+		}
+
+		return new FileInfo(toString(path), size, parts[0]);
+	}
+
+	private void add(FileInfo file) throws AbortException {
+		if (files.put(file.getPath(), file) != null) {
+			throw new AbortException("Malformed manifest: duplicate path \"" + file.getPath() + "\"");
+		}
+	}
+
+	/**
+	 * Converts a relative path into the form used by manifests.
+	 */
+	public static String toString(Path path) {
+		StringBuilder sb = new StringBuilder();
+		for (Path name : path) {
+			if (sb.length() != 0) sb.append('/');
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public Collection<FileInfo> getFiles() {
+		return Collections.unmodifiableCollection(files.values());
+	}
+
+	public FileInfo get(String path) {
+		return files.get(path);
+	}
+
+}
@@ -0,0 +1,246 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the work done in each phase of an action. The counters feed the GUI progress bar and the
+ * JSON report written after every run.
+ */
+public class Metrics {
+
+	/**
+	 * Rates are averaged over this many milliseconds.
+	 */
+	private static final long RATE_WINDOW = 5000;
+	private static final long SAMPLE_PERIOD = 250;
+
+	public enum Phase {
+		DOWNLOAD("download", "Downloading"),
+		PARSE("parse", "Parsing"),
+		EXTRACT("extract", "Extracting"),
+		VERIFY("verify", "Verifying"),
+		DELETE("delete", "Deleting"),
+		SYNC("sync", "Flushing to disk");
+
+		private final String id;
+		private final String title;
+
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong entries = new AtomicLong();
+		private final AtomicLong expectedBytes = new AtomicLong();
+		private final AtomicLong expectedEntries = new AtomicLong();
+
+		private int active = 0;
+		private long startTime;
+		private long duration = 0;
+
+		/**
+		 * Recent {time, bytes, entries} samples, oldest first.
+		 */
+		private final ArrayDeque<long[]> samples = new ArrayDeque<>();
+
+		private Phase(String id, String title) {
+			this.id = id;
+			this.title = title;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * Starts timing the phase. Calls may nest or overlap; the phase lasts until the matching
+		 * number of {@link #end()} calls.
+		 */
+		public synchronized void begin() {
+			if (active++ == 0) {
+				startTime = System.nanoTime();
+			}
+			current = this;
+		}
+
+		public synchronized void end() {
+			if (active > 0 && --active == 0) {
+				duration += System.nanoTime() - startTime;
+			}
+		}
+
+		/**
+		 * Adds to the amount of work that this phase is expected to do, for progress reporting.
+		 */
+		public void expect(long bytes, long entries) {
+			expectedBytes.addAndGet(bytes);
+			expectedEntries.addAndGet(entries);
+		}
+
+		public void add(long bytes, long entries) {
+			this.bytes.addAndGet(bytes);
+			this.entries.addAndGet(entries);
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		public long getEntries() {
+			return entries.get();
+		}
+
+		public synchronized long getDurationMillis() {
+			long result = duration;
+			if (active > 0) result += System.nanoTime() - startTime;
+			return result / 1000000;
+		}
+
+		/**
+		 * @return the completed fraction of the expected work, or a negative value if it is unknown
+		 */
+		public double getProgress() {
+			long expected = expectedBytes.get();
+			if (expected > 0) return Math.min(1, bytes.get() / (double) expected);
+
+			expected = expectedEntries.get();
+			if (expected > 0) return Math.min(1, entries.get() / (double) expected);
+
+			return -1;
+		}
+
+		/**
+		 * @return bytes per second over the last few seconds
+		 */
+		public double getByteRate() {
+			return getRate(1);
+		}
+
+		/**
+		 * @return entries per second over the last few seconds
+		 */
+		public double getEntryRate() {
+			return getRate(2);
+		}
+
+		private synchronized double getRate(int field) {
+			long now = System.nanoTime() / 1000000;
+
+			if (samples.isEmpty() || now - samples.peekLast()[0] >= SAMPLE_PERIOD) {
+				samples.addLast(new long[] { now, bytes.get(), entries.get() });
+			}
+
+			while (samples.size() > 2 && now - samples.peekFirst()[0] > RATE_WINDOW) {
+				samples.removeFirst();
+			}
+
+			long[] first = samples.peekFirst();
+			long[] last = samples.peekLast();
+			if (last[0] == first[0]) return 0;
+
+			return (last[field] - first[field]) * 1000.0 / (last[0] - first[0]);
+		}
+
+		/**
+		 * @return the estimated number of seconds until the phase completes, or a negative value if
+		 * it cannot be estimated
+		 */
+		public long getRemainingSeconds() {
+			long expected = expectedBytes.get();
+			double rate;
+			long remaining;
+
+			if (expected > 0) {
+				rate = getByteRate();
+				remaining = expected - bytes.get();
+			} else if ((expected = expectedEntries.get()) > 0) {
+				rate = getEntryRate();
+				remaining = expected - entries.get();
+			} else {
+				return -1;
+			}
+
+			if (rate <= 0) return -1;
+			return (long) Math.ceil(Math.max(0, remaining) / rate);
+		}
+	}
+
+	private static volatile Phase current = null;
+	private static final Instant START = Instant.now();
+
+	/**
+	 * @return the phase that was started most recently, or {@code null}
+	 */
+	public static Phase getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Writes a JSON report of the run.
+	 * @param result {@code "success"}, {@code "aborted"} or {@code "failed"}
+	 * @param message the reason the action did not succeed, or {@code null}
+	 */
+	public static void writeReport(Path file, Action action, String result, String message) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) Files.createDirectories(parent);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"program\": ").append(quote(Main.NAME)).append(",\n");
+		sb.append("  \"version\": ").append(quote(Main.VERSION)).append(",\n");
+		sb.append("  \"action\": ").append(quote(action.getName())).append(",\n");
+		sb.append("  \"result\": ").append(quote(result)).append(",\n");
+		sb.append("  \"message\": ").append(quote(message)).append(",\n");
+		sb.append("  \"start\": ").append(quote(START.toString())).append(",\n");
+		sb.append("  \"durationMs\": ").append(Instant.now().toEpochMilli() - START.toEpochMilli()).append(",\n");
+		sb.append("  \"threads\": ").append(Settings.getThreads()).append(",\n");
+		sb.append("  \"connections\": ").append(Settings.getSegmentCount()).append(",\n");
+		sb.append("  \"phases\": {");
+
+		boolean first = true;
+		for (Phase phase : Phase.values()) {
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+
+			long duration = phase.getDurationMillis();
+			sb.append("    ").append(quote(phase.id)).append(": {");
+			sb.append("\"durationMs\": ").append(duration);
+			sb.append(", \"bytes\": ").append(phase.getBytes());
+			sb.append(", \"entries\": ").append(phase.getEntries());
+			sb.append(", \"bytesPerSecond\": ").append(duration == 0 ? 0 : phase.getBytes() * 1000 / duration);
+			sb.append("}");
+		}
+
+		sb.append("\n  }\n}\n");
+
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write(sb.toString());
+		}
+	}
+
+	private static String quote(String str) {
+		if (str == null) return "null";
+
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : str.toCharArray()) {
+			switch (c) {
+			case '"':  sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n");  break;
+			case '\r': sb.append("\\r");  break;
+			case '\t': sb.append("\\t");  break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+}
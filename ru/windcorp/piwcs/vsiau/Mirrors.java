@@ -0,0 +1,166 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the servers given by {@link Settings#getServers()} by speed. On first use, the beginning
+ * of the artifact that is requested first is requested from all servers at once and they are
+ * ranked by the time the request took, which accounts for both latency and throughput. Probing
+ * the artifact that is needed anyway keeps caching mirrors from fetching anything else. Servers
+ * that fail or do not answer in time are kept as a last resort.
+ */
+public class Mirrors {
+
+	private static final int PROBE_SIZE = 256 * 1024;
+	private static final int PROBE_TIMEOUT = 5000;
+
+	private static class Probe {
+		final String server;
+		final long latency;
+		final long duration;
+		final long bytes;
+
+		Probe(String server, long latency, long duration, long bytes) {
+			this.server = server;
+			this.latency = latency;
+			this.duration = duration;
+			this.bytes = bytes;
+		}
+	}
+
+	private static List<String> ranked = null;
+
+	/**
+	 * @param path the artifact about to be requested, which is probed if the servers have not been
+	 * ranked yet
+	 * @return the base URLs of all servers, fastest first
+	 */
+	public static synchronized List<String> getServers(String path) {
+		if (ranked == null) {
+			ranked = Collections.unmodifiableList(rank(Settings.getServers(), path));
+		}
+
+		return ranked;
+	}
+
+	/**
+	 * @param path the artifact about to be requested, which is probed if the servers have not been
+	 * ranked yet
+	 * @return the base URL of the fastest server
+	 */
+	public static String getBest(String path) {
+		return getServers(path).get(0);
+	}
+
+	private static List<String> rank(List<String> servers, String path) {
+		if (servers.size() == 1) return servers;
+
+		System.out.println("Probing " + servers.size() + " mirrors...");
+
+		List<Callable<Probe>> probes = new ArrayList<>();
+		for (String server : servers) {
+			probes.add(() -> probe(server, path));
+		}
+
+		List<Probe> results = new ArrayList<>();
+		Map<String, String> failures = new HashMap<>();
+
+		ExecutorService executor = Workers.newPool(servers.size(), "probe");
+		try {
+			List<Future<Probe>> futures = executor.invokeAll(probes, PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+			for (int i = 0; i < servers.size(); ++i) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (CancellationException e) {
+					failures.put(servers.get(i), "timed out");
+				} catch (ExecutionException e) {
+					failures.put(servers.get(i), e.getCause().toString());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return servers;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		results.sort(Comparator.comparingLong(probe -> probe.duration));
+
+		List<String> result = new ArrayList<>();
+		for (Probe probe : results) {
+			System.out.printf("  %s: %d ms to first byte, %d KiB in %d ms%n",
+					probe.server,
+					probe.latency / 1_000_000,
+					probe.bytes / 1024,
+					probe.duration / 1_000_000);
+			result.add(probe.server);
+		}
+
+		for (String server : servers) {
+			if (failures.containsKey(server)) {
+				System.out.println("  " + server + ": " + failures.get(server));
+				result.add(server);
+			}
+		}
+
+		System.out.println("Using mirror " + result.get(0));
+		return result;
+	}
+
+	/**
+	 * Requests the first {@link #PROBE_SIZE} bytes of an artifact. A 404 response, for an artifact
+	 * that is not published, still measures the latency of the server.
+	 */
+	private static Probe probe(String server, String path) throws IOException {
+		long start = System.nanoTime();
+
+		URLConnection connection = new URL(server + path).openConnection();
+		connection.setConnectTimeout(PROBE_TIMEOUT);
+		connection.setReadTimeout(PROBE_TIMEOUT);
+		connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+
+		if (connection instanceof HttpURLConnection
+				&& ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+			long latency = System.nanoTime() - start;
+			((HttpURLConnection) connection).disconnect();
+			return new Probe(server, latency, latency, 0);
+		}
+
+		try (InputStream input = connection.getInputStream()) {
+			long latency = System.nanoTime() - start;
+
+			byte[] buffer = new byte[16 * 1024];
+			long bytes = 0;
+			int read;
+
+			// The server may ignore the range and send everything
+			while (bytes < PROBE_SIZE && (read = input.read(buffer)) >= 0) {
+				bytes += read;
+			}
+
+			return new Probe(server, latency, System.nanoTime() - start, bytes);
+		} finally {
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+		}
+	}
+
+}
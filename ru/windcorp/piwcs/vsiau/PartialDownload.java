@@ -0,0 +1,188 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The sidecar of an interrupted download. It records where the file came from, the validators the
+ * server reported for it and the byte ranges that have already been written. A record without a
+ * sidecar file only lives in memory.
+ */
+public class PartialDownload {
+
+	private final Path file;
+
+	private final String url;
+	private final String etag;
+	private final String lastModified;
+	private final long size;
+
+	/**
+	 * Completed ranges as start -> end (exclusive). Ranges never overlap or touch.
+	 */
+	private final TreeMap<Long, Long> completed = new TreeMap<>();
+
+	public PartialDownload(Path file, String url, String etag, String lastModified, long size) {
+		this.file = file;
+		this.url = url;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.size = size;
+	}
+
+	/**
+	 * Reads a sidecar.
+	 * @return the partial download or {@code null} if the sidecar does not exist or cannot be parsed
+	 */
+	public static PartialDownload load(Path file) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		}
+
+		try {
+			PartialDownload result = new PartialDownload(
+					file,
+					properties.getProperty("url"),
+					properties.getProperty("etag"),
+					properties.getProperty("last-modified"),
+					Long.parseLong(properties.getProperty("size"))
+			);
+
+			String ranges = properties.getProperty("completed", "");
+			for (String range : ranges.split(",")) {
+				if (range.isEmpty()) continue;
+				int dash = range.indexOf('-');
+				result.complete(
+						Long.parseLong(range.substring(0, dash)),
+						Long.parseLong(range.substring(dash + 1))
+				);
+			}
+
+			return result;
+		} catch (NumberFormatException | IndexOutOfBoundsException | NullPointerException e) {
+			System.out.println("Ignoring corrupted partial download record " + file);
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether this partial download was started for the same resource. At least one validator
+	 * must be present, otherwise a changed resource could not be detected.
+	 */
+	public boolean matches(String url, String etag, String lastModified, long size) {
+		if (this.etag == null && this.lastModified == null) {
+			return false;
+		}
+
+		return Objects.equals(this.url, url)
+				&& Objects.equals(this.etag, etag)
+				&& Objects.equals(this.lastModified, lastModified)
+				&& this.size == size;
+	}
+
+	/**
+	 * @return the value to send in an {@code If-Range} header, or {@code null} if there is none
+	 */
+	public String getValidator() {
+		return etag != null ? etag : lastModified;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Marks bytes [start; end) as written.
+	 */
+	public synchronized void complete(long start, long end) {
+		if (start >= end) return;
+
+		Map.Entry<Long, Long> before = completed.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+
+		Map.Entry<Long, Long> after;
+		while ((after = completed.ceilingEntry(start)) != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			completed.remove(after.getKey());
+		}
+
+		completed.put(start, end);
+	}
+
+	public synchronized long getCompletedBytes() {
+		long result = 0;
+		for (Map.Entry<Long, Long> range : completed.entrySet()) {
+			result += range.getValue() - range.getKey();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ranges that still have to be downloaded as {start, end} pairs, end exclusive
+	 */
+	public synchronized List<long[]> getMissing() {
+		List<long[]> result = new ArrayList<>();
+
+		long position = 0;
+		for (Map.Entry<Long, Long> range : completed.entrySet()) {
+			if (range.getKey() > position) {
+				result.add(new long[] { position, range.getKey() });
+			}
+			position = range.getValue();
+		}
+
+		if (position < size) {
+			result.add(new long[] { position, size });
+		}
+
+		return result;
+	}
+
+	public synchronized void save() throws IOException {
+		if (file == null) return;
+		
+		Properties properties = new Properties();
+		properties.setProperty("url", url);
+		if (etag != null) properties.setProperty("etag", etag);
+		if (lastModified != null) properties.setProperty("last-modified", lastModified);
+		properties.setProperty("size", Long.toString(size));
+
+		StringBuilder ranges = new StringBuilder();
+		for (Map.Entry<Long, Long> range : completed.entrySet()) {
+			if (ranges.length() != 0) ranges.append(',');
+			ranges.append(range.getKey()).append('-').append(range.getValue());
+		}
+		properties.setProperty("completed", ranges.toString());
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			properties.store(writer, Main.NAME + " partial download");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void delete() throws IOException {
+		if (file == null) return;
+		Files.deleteIfExists(file);
+	}
+
+}
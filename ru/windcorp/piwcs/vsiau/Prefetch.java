@@ -0,0 +1,73 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the beginning of the artifacts given by {@link Action#getPrefetchPaths()} in the
+ * background while the user is still choosing an action in the GUI. Only the first segments are
+ * fetched, so a large artifact of an action that is not chosen costs little. The chosen action
+ * resumes its downloads through {@link Action#download(String)}; the downloads of the other actions
+ * are cancelled.
+ */
+public class Prefetch {
+
+	/**
+	 * Background downloads by path.
+	 */
+	private static final Map<String, Future<?>> downloads = new HashMap<>();
+
+	private static ExecutorService executor = null;
+
+	/**
+	 * Starts downloading the artifacts of all given actions.
+	 */
+	public static synchronized void start(List<Action> actions) {
+		Set<String> paths = new LinkedHashSet<>();
+		for (Action action : actions) {
+			paths.addAll(action.getPrefetchPaths());
+		}
+
+		if (paths.isEmpty()) return;
+
+		executor = Workers.newPool(paths.size(), "prefetch");
+		for (String path : paths) {
+			downloads.put(path, executor.submit(() -> {
+				Action.prefetch(path);
+				return null;
+			}));
+		}
+	}
+
+	/**
+	 * Cancels the downloads that the given action does not need.
+	 */
+	public static synchronized void retain(Action action) {
+		Collection<String> needed = action.getPrefetchPaths();
+
+		downloads.entrySet().removeIf(download -> {
+			if (needed.contains(download.getKey())) return false;
+
+			download.getValue().cancel(true);
+			return true;
+		});
+
+		if (executor != null) executor.shutdown();
+	}
+
+	/**
+	 * Hands over a background download. Each download is handed over only once.
+	 * @return the download, which completes once the partial file may be resumed, or {@code null}
+	 * if the path is not being downloaded in the background
+	 */
+	public static synchronized Future<?> take(String path) {
+		return downloads.remove(path);
+	}
+
+}
@@ -0,0 +1,176 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts text update programs into the compiled format, syntax version 2.
+ * <p>
+ * A compiled program starts with the ASCII characters {@code 2\n} so that older updaters report
+ * an outdated syntax version. All counts, lengths and indices that follow are unsigned LEB128
+ * varints and all strings are UTF-8.
+ * <ol>
+ * <li>the expected and the new version as length-prefixed strings;</li>
+ * <li>the string table: a count followed by length-prefixed strings. Every distinct command name
+ * and argument is stored once;</li>
+ * <li>the command table: a count followed by, for each command, the index of its name in the
+ * string table and its argument count. Opcodes are indices into this table;</li>
+ * <li>the instructions: a count followed by, for each instruction, its opcode and the string table
+ * index of each argument.</li>
+ * </ol>
+ * Nothing may follow the last instruction.
+ * <p>
+ * Usage: {@code ProgramCompiler <text program> <compiled program>}
+ */
+public class ProgramCompiler {
+
+	public static final byte SYNTAX_VERSION = '2';
+
+	private final Map<String, Integer> strings = new LinkedHashMap<>();
+	private final Map<String, Integer> commands = new LinkedHashMap<>();
+	private final List<String> commandNames = new ArrayList<>();
+	private final List<Integer> commandArgCounts = new ArrayList<>();
+	private final List<int[]> instructions = new ArrayList<>();
+
+	private String expectedVersion;
+	private String newVersion;
+
+	public static void main(String[] args) throws IOException, AbortException {
+		if (args.length != 2) {
+			System.out.println("Usage: ProgramCompiler <text program> <compiled program>");
+			System.exit(1);
+		}
+
+		try (
+				Reader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+				OutputStream output = Files.newOutputStream(Paths.get(args[1]));
+		) {
+			compile(reader, output);
+		}
+	}
+
+	public static void compile(Reader source, OutputStream output) throws IOException, AbortException {
+		ProgramCompiler compiler = new ProgramCompiler();
+		compiler.read(source);
+		compiler.write(output);
+	}
+
+	public static byte[] compile(Reader source) throws IOException, AbortException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		compile(source, output);
+		return output.toByteArray();
+	}
+
+	private void read(Reader source) throws IOException, AbortException {
+		BufferedReader reader = new BufferedReader(source);
+
+		String syntaxVersion = reader.readLine();
+		if (syntaxVersion == null || syntaxVersion.length() != 1
+				|| syntaxVersion.charAt(0) < '0' || syntaxVersion.charAt(0) >= SYNTAX_VERSION) {
+			throw new AbortException("Cannot compile program: unsupported syntax version " + syntaxVersion);
+		}
+
+		expectedVersion = reader.readLine();
+		newVersion = reader.readLine();
+
+		if (expectedVersion == null || newVersion == null) {
+			throw new AbortException("Cannot compile program: header is incomplete");
+		}
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) continue;
+
+			String[] parts = line.split("; ", -1);
+			int argCount = parts.length - 1;
+
+			// Commands with optional arguments get one opcode per argument count
+			String key = parts[0] + ';' + argCount;
+			Integer opcode = commands.get(key);
+			if (opcode == null) {
+				opcode = commands.size();
+				commands.put(key, opcode);
+				commandNames.add(parts[0]);
+				commandArgCounts.add(argCount);
+			}
+
+			int[] instruction = new int[parts.length];
+			instruction[0] = opcode;
+			for (int i = 1; i < parts.length; ++i) {
+				instruction[i] = intern(parts[i]);
+			}
+
+			instructions.add(instruction);
+		}
+
+		for (String command : commandNames) {
+			intern(command);
+		}
+	}
+
+	private int intern(String string) {
+		Integer index = strings.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.put(string, index);
+		}
+		return index;
+	}
+
+	private void write(OutputStream stream) throws IOException {
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+
+		output.write(SYNTAX_VERSION);
+		output.write('\n');
+
+		writeString(output, expectedVersion);
+		writeString(output, newVersion);
+
+		writeVarInt(output, strings.size());
+		for (String string : strings.keySet()) {
+			writeString(output, string);
+		}
+
+		writeVarInt(output, commands.size());
+		for (int opcode = 0; opcode < commands.size(); ++opcode) {
+			writeVarInt(output, strings.get(commandNames.get(opcode)));
+			writeVarInt(output, commandArgCounts.get(opcode));
+		}
+
+		writeVarInt(output, instructions.size());
+		for (int[] instruction : instructions) {
+			for (int value : instruction) {
+				writeVarInt(output, value);
+			}
+		}
+
+		output.flush();
+	}
+
+	private static void writeString(DataOutputStream output, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(output, bytes.length);
+		output.write(bytes);
+	}
+
+	private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+}
@@ -0,0 +1,349 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class Settings {
+
+	private static final long MEBIBYTE = 1024 * 1024;
+
+	private static int segmentCount = 4;
+	private static long segmentSize = 8 * MEBIBYTE;
+	
+	private static int threads = Runtime.getRuntime().availableProcessors();
+	
+	private static boolean streaming = false;
+
+	private static boolean repair = false;
+	
+	private static long cacheSize = 1024 * MEBIBYTE;
+	
+	private static Path dataDirectory = Paths.get(System.getProperty("user.home"), "." + Main.SHORT_NAME);
+
+	private static Path reportFile = null;
+
+	private static final String DEFAULT_SERVER = "http://windcorp.ru/";
+
+	private static final List<String> servers = new ArrayList<>();
+
+	private static long minSpeed = 64 * 1024;
+
+	private static int port = 8080;
+
+	private static final List<Path> targets = new ArrayList<>();
+
+	private static boolean preallocate = true;
+
+	private static int writeBufferSize = 1024 * 1024;
+	private static final int MAX_WRITE_BUFFER = 64 * 1024 * 1024;
+
+	private static WriteStrategy.Durability durability = WriteStrategy.Durability.NONE;
+
+	/**
+	 * Consumes all options from the command line.
+	 * @param args the command line
+	 * @return the arguments that are not options, or {@code null} if the options are malformed
+	 */
+	public static List<String> parse(String[] args) {
+		List<String> remaining = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				String arg = args[i];
+
+				if (!arg.startsWith("--")) {
+					remaining.add(arg);
+					continue;
+				}
+
+				if (parseFlag(arg)) {
+					continue;
+				}
+
+				if (i + 1 >= args.length) {
+					System.out.println("Option " + arg + " requires a value");
+					return null;
+				}
+
+				String value = args[++i];
+
+				switch (arg) {
+				case "--segments":
+					segmentCount = parsePositiveInt(value);
+					break;
+				case "--segment-size":
+					segmentSize = parsePositiveInt(value) * MEBIBYTE;
+					break;
+				case "--threads":
+					threads = parsePositiveInt(value);
+					break;
+				case "--cache-size":
+					cacheSize = parseNonNegativeInt(value) * MEBIBYTE;
+					break;
+				case "--data-dir":
+					dataDirectory = Paths.get(value);
+					break;
+				case "--report":
+					reportFile = Paths.get(value);
+					break;
+				case "--server":
+					servers.add(parseServer(value));
+					break;
+				case "--min-speed":
+					minSpeed = parseNonNegativeInt(value) * 1024L;
+					break;
+				case "--port":
+					port = parsePort(value);
+					break;
+				case "--target":
+					targets.add(Paths.get(value));
+					break;
+				case "--targets":
+					if (!readTargets(Paths.get(value))) return null;
+					break;
+				case "--preallocate":
+					preallocate = parseSwitch(value);
+					break;
+				case "--write-buffer":
+					writeBufferSize = parseWriteBuffer(value);
+					break;
+				case "--durability":
+					durability = parseDurability(value);
+					break;
+				default:
+					System.out.println("Unknown option " + arg);
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid option value: " + e.getMessage());
+			return null;
+		}
+
+		return remaining;
+	}
+
+	private static boolean parseFlag(String arg) {
+		switch (arg) {
+		case "--streaming":
+			streaming = true;
+			return true;
+		case "--repair":
+			repair = true;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static int parsePositiveInt(String value) {
+		int result = Integer.parseInt(value);
+		if (result <= 0) {
+			throw new NumberFormatException(value + " is not positive");
+		}
+		return result;
+	}
+
+	private static int parseNonNegativeInt(String value) {
+		int result = Integer.parseInt(value);
+		if (result < 0) {
+			throw new NumberFormatException(value + " is negative");
+		}
+		return result;
+	}
+
+	private static String parseServer(String value) {
+		try {
+			new URL(value);
+		} catch (MalformedURLException e) {
+			throw new NumberFormatException(value + " is not a URL");
+		}
+		return value.endsWith("/") ? value : value + "/";
+	}
+
+	private static int parsePort(String value) {
+		int result = parsePositiveInt(value);
+		if (result > 0xFFFF) {
+			throw new NumberFormatException(value + " is not a port number");
+		}
+		return result;
+	}
+
+	/**
+	 * @return the size in bytes of a buffer given in KiB
+	 */
+	private static int parseWriteBuffer(String value) {
+		long result = Long.parseLong(value);
+		if (result <= 0 || result > MAX_WRITE_BUFFER / 1024) {
+			throw new NumberFormatException(value + " is not between 1 and " + MAX_WRITE_BUFFER / 1024);
+		}
+		return (int) (result * 1024);
+	}
+
+	private static boolean parseSwitch(String value) {
+		switch (value) {
+		case "on":
+			return true;
+		case "off":
+			return false;
+		default:
+			throw new NumberFormatException(value + " is neither on nor off");
+		}
+	}
+
+	private static WriteStrategy.Durability parseDurability(String value) {
+		for (WriteStrategy.Durability mode : WriteStrategy.Durability.values()) {
+			if (mode.name().equalsIgnoreCase(value)) return mode;
+		}
+		throw new NumberFormatException(value + " is not one of none, file and batch");
+	}
+
+	/**
+	 * Reads installation directories from a file, one per line. Empty lines and lines starting with
+	 * {@code #} are ignored.
+	 * @return {@code false} if the file cannot be read
+	 */
+	private static boolean readTargets(Path file) {
+		try {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					targets.add(Paths.get(line));
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not read targets from " + file + ": " + e);
+			return false;
+		}
+	}
+
+	public static void printUsage() {
+		System.out.println("Options:");
+		System.out.println("  --segments N      download using up to N concurrent connections (default 4)");
+		System.out.println("  --segment-size N  download in segments of N MiB (default 8)");
+		System.out.println("  --threads N       unpack files using N threads, 1 to unpack sequentially (default " + threads + ")");
+		System.out.println("  --streaming       unpack the modpack while it is being downloaded");
+		System.out.println("  --repair          make Verify download damaged and missing files again");
+		System.out.println("  --cache-size N    keep up to N MiB of downloaded artifacts, 0 to disable (default 1024)");
+		System.out.println("  --data-dir DIR    keep interrupted downloads and cache in DIR (default " + dataDirectory + ")");
+		System.out.println("  --report FILE     write a JSON report of the run to FILE (default " + getReportFile() + ")");
+		System.out.println("  --server URL      download from URL, e.g. a mirror started with Serve (default " + DEFAULT_SERVER + ");");
+		System.out.println("                    repeat to list mirrors, the fastest one is used and the others are fallbacks");
+		System.out.println("  --min-speed N     switch to the next mirror when a connection is slower than N KiB/s, 0 to never switch (default 64)");
+		System.out.println("  --port N          make Serve listen on port N (default " + port + ")");
+		System.out.println("  --target DIR      install or update the installation in DIR instead of the working directory;");
+		System.out.println("                    repeat to update several installations with a single download");
+		System.out.println("  --targets FILE    same as --target for every directory listed in FILE, one per line");
+		System.out.println("  --preallocate X   on or off: set the length of files of known size before writing them (default on)");
+		System.out.println("  --write-buffer N  write files in blocks of up to N KiB (default 1024, at most 65536)");
+		System.out.println("  --durability MODE none: leave flushing to the system; file: flush every file when written;");
+		System.out.println("                    batch: flush all files at once before the installation is marked updated (default none)");
+	}
+
+	public static int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public static long getSegmentSize() {
+		return segmentSize;
+	}
+	
+	public static int getThreads() {
+		return threads;
+	}
+	
+	public static boolean isStreaming() {
+		return streaming;
+	}
+	
+	public static boolean isRepair() {
+		return repair;
+	}
+
+	public static Path getDataDirectory() {
+		return dataDirectory;
+	}
+	
+	public static Path getPartialDirectory() {
+		return dataDirectory.resolve("partial");
+	}
+	
+	public static Path getCacheDirectory() {
+		return dataDirectory.resolve("cache");
+	}
+	
+	public static Path getMirrorDirectory() {
+		return dataDirectory.resolve("mirror");
+	}
+	
+	public static Path getReportFile() {
+		return (reportFile == null) ? getDataDirectory().resolve("last-run.json") : reportFile;
+	}
+
+	public static long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @return the base URLs of the modpack server and its mirrors in the order they were given, each
+	 * ending with a slash. See {@link Mirrors} for the order they are used in
+	 */
+	public static List<String> getServers() {
+		return servers.isEmpty() ? Collections.singletonList(DEFAULT_SERVER) : servers;
+	}
+
+	/**
+	 * @return the base URL of the first server given
+	 */
+	public static String getServer() {
+		return getServers().get(0);
+	}
+
+	/**
+	 * @return the speed in bytes per second below which a download switches to another mirror
+	 */
+	public static long getMinSpeed() {
+		return minSpeed;
+	}
+
+	public static int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the installation directories to operate on; the working directory unless
+	 * {@code --target} or {@code --targets} is given
+	 */
+	public static List<Path> getTargets() {
+		return targets.isEmpty() ? Collections.singletonList(Paths.get("")) : targets;
+	}
+
+	public static boolean hasTargets() {
+		return !targets.isEmpty();
+	}
+
+	public static boolean isPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * @return the size of the buffers files are written through in bytes
+	 */
+	public static int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
+	public static WriteStrategy.Durability getDurability() {
+		return durability;
+	}
+
+}
@@ -3,12 +3,31 @@ package ru.windcorp.piwcs.vsiau;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
+/**
+ * Copies everything written to a stream into the GUI log. Bytes are decoded with the charset that
+ * {@link PrintStream} encodes with, so multi-byte characters split between writes are reassembled.
+ * Complete lines are handed to the GUI, which appends them in batches.
+ */
 public class SpyOutputStream extends OutputStream {
 	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
 	private final PrintStream original;
 	private final Gui gui;
 	
+	private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	
+	private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer output = CharBuffer.allocate(BUFFER_SIZE);
 	private final StringBuilder buffer = new StringBuilder();
 
 	public SpyOutputStream(PrintStream out, Gui gui) {
@@ -18,20 +37,50 @@ public class SpyOutputStream extends OutputStream {
 
 	@Override
 	public void write(int b) throws IOException {
-		char c = (char) b;
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		original.write(b, off, len);
 		
-		original.write(c);
-		buffer.append(c);
+		while (len > 0) {
+			int chunk = Math.min(len, input.remaining());
+			input.put(b, off, chunk);
+			off += chunk;
+			len -= chunk;
+			
+			input.flip();
+			decode();
+			// Keeps the beginning of a character that has not been written completely yet
+			input.compact();
+		}
 		
-		if (c == '\n') {
-			flush();
+		int end = buffer.lastIndexOf("\n") + 1;
+		if (end > 0) {
+			gui.log(buffer.substring(0, end));
+			buffer.delete(0, end);
 		}
 	}
 	
+	private void decode() {
+		CoderResult result;
+		do {
+			result = decoder.decode(input, output, false);
+			output.flip();
+			buffer.append(output);
+			output.clear();
+		} while (result.isOverflow());
+	}
+	
 	@Override
-	public void flush() throws IOException {
-		gui.log(buffer.toString());
-		buffer.setLength(0);
+	public synchronized void flush() throws IOException {
+		original.flush();
+		
+		if (buffer.length() > 0) {
+			gui.log(buffer.toString());
+			buffer.setLength(0);
+		}
 	}
 
 }
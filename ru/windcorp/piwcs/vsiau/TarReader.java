@@ -0,0 +1,285 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the entries of a tar archive from a stream, one after another. POSIX ustar archives are
+ * supported along with the GNU and pax extensions for long names and large files.
+ * <p>
+ * The data of the current entry is read through {@link #getInputStream()}; whatever is left of it
+ * is skipped by the next call to {@link #next()}.
+ */
+public class TarReader {
+
+	private static final int BLOCK_SIZE = 512;
+
+	private static final byte TYPE_FILE = '0';
+	private static final byte TYPE_FILE_OLD = 0;
+	private static final byte TYPE_CONTIGUOUS = '7';
+	private static final byte TYPE_DIRECTORY = '5';
+	private static final byte TYPE_GNU_LONG_NAME = 'L';
+	private static final byte TYPE_PAX = 'x';
+
+	private final InputStream input;
+	private final byte[] header = new byte[BLOCK_SIZE];
+
+	private String name;
+	private boolean directory;
+	private long size;
+
+	/**
+	 * Bytes of the current entry's data and padding that have not been read yet.
+	 */
+	private long remaining = 0;
+	private long padding = 0;
+
+	private final InputStream entryStream = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+
+			int count = input.read(b, off, (int) Math.min(len, remaining));
+			if (count < 0) throw new EOFException("Unexpected end of tar archive in " + name);
+
+			remaining -= count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long count = input.skip(Math.min(n, remaining));
+			remaining -= count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(remaining, input.available());
+		}
+
+		@Override
+		public void close() {
+			// The archive stays open
+		}
+	};
+
+	public TarReader(InputStream input) {
+		this.input = input;
+	}
+
+	/**
+	 * Advances to the next file or directory.
+	 * @return {@code false} if there are no more entries
+	 */
+	public boolean next() throws IOException {
+		skipFully(remaining + padding);
+		remaining = 0;
+		padding = 0;
+
+		String longName = null;
+
+		while (true) {
+			if (!readHeader()) return false;
+
+			byte type = header[156];
+			String entryName = (longName != null) ? longName : readName();
+			longName = null;
+
+			long entrySize = readNumber(124, 12);
+			remaining = entrySize;
+			padding = (BLOCK_SIZE - entrySize % BLOCK_SIZE) % BLOCK_SIZE;
+
+			switch (type) {
+			case TYPE_FILE:
+			case TYPE_FILE_OLD:
+			case TYPE_CONTIGUOUS:
+			case TYPE_DIRECTORY:
+				name = entryName;
+				directory = (type == TYPE_DIRECTORY) || entryName.endsWith("/");
+				size = entrySize;
+				return true;
+
+			case TYPE_GNU_LONG_NAME:
+				longName = trimNul(new String(readData(), StandardCharsets.UTF_8));
+				break;
+
+			case TYPE_PAX:
+				longName = readPaxPath(new String(readData(), StandardCharsets.UTF_8));
+				break;
+
+			default:
+				// Links, devices and global headers are of no use to the updater
+				System.out.println("  skipping tar entry " + entryName + " of type " + (char) type);
+				skipFully(remaining + padding);
+				remaining = 0;
+				padding = 0;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the path of the current entry, with a trailing slash for directories
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return a stream of the current entry's data; closing it does not close the archive
+	 */
+	public InputStream getInputStream() {
+		return entryStream;
+	}
+
+	/**
+	 * @return {@code false} at the end of the archive
+	 */
+	private boolean readHeader() throws IOException {
+		int read = 0;
+		while (read < BLOCK_SIZE) {
+			int count = input.read(header, read, BLOCK_SIZE - read);
+			if (count < 0) {
+				if (read == 0) return false;
+				throw new EOFException("Unexpected end of tar archive");
+			}
+			read += count;
+		}
+
+		boolean empty = true;
+		for (byte b : header) {
+			if (b != 0) {
+				empty = false;
+				break;
+			}
+		}
+
+		// The archive ends with two empty blocks; the first one is enough
+		if (empty) return false;
+
+		long expected = readNumber(148, 8);
+		long actual = 0;
+		for (int i = 0; i < BLOCK_SIZE; ++i) {
+			actual += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+		}
+
+		if (actual != expected) {
+			throw new IOException("Malformed tar archive: header checksum mismatch");
+		}
+
+		return true;
+	}
+
+	private String readName() {
+		String name = readString(0, 100);
+
+		// ustar stores the directories of long paths separately
+		if (readString(257, 6).startsWith("ustar")) {
+			String prefix = readString(345, 155);
+			if (!prefix.isEmpty()) name = prefix + "/" + name;
+		}
+
+		return name;
+	}
+
+	private String readString(int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) end++;
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads an octal field, or a big-endian binary one if its first byte has the high bit set.
+	 */
+	private long readNumber(int offset, int length) throws IOException {
+		if ((header[offset] & 0x80) != 0) {
+			long result = header[offset] & 0x7F;
+			for (int i = offset + 1; i < offset + length; ++i) {
+				result = (result << 8) | (header[i] & 0xFF);
+			}
+			return result;
+		}
+
+		String str = readString(offset, length).trim();
+		if (str.isEmpty()) return 0;
+
+		try {
+			return Long.parseLong(str, 8);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed tar archive: invalid number \"" + str + "\"", e);
+		}
+	}
+
+	/**
+	 * Reads the data of an extension entry, which must be small, and skips to the next header.
+	 */
+	private byte[] readData() throws IOException {
+		if (remaining > 1024 * 1024) {
+			throw new IOException("Malformed tar archive: extended header is too large");
+		}
+
+		byte[] data = new byte[(int) remaining];
+		int read = 0;
+		while (read < data.length) {
+			int count = entryStream.read(data, read, data.length - read);
+			if (count < 0) throw new EOFException("Unexpected end of tar archive");
+			read += count;
+		}
+
+		skipFully(padding);
+		padding = 0;
+
+		return data;
+	}
+
+	/**
+	 * Finds the path in pax records of the form {@code "<length> <key>=<value>\n"}.
+	 * @return the path, or {@code null} if there is none
+	 */
+	private static String readPaxPath(String records) {
+		for (String record : records.split("\n")) {
+			int space = record.indexOf(' ');
+			if (space >= 0 && record.startsWith("path=", space + 1)) {
+				return record.substring(space + 1 + "path=".length());
+			}
+		}
+
+		return null;
+	}
+
+	private static String trimNul(String str) {
+		int end = str.indexOf('\0');
+		return (end < 0) ? str : str.substring(0, end);
+	}
+
+	private void skipFully(long count) throws IOException {
+		while (count > 0) {
+			long skipped = input.skip(count);
+
+			if (skipped <= 0) {
+				if (input.read() < 0) throw new EOFException("Unexpected end of tar archive");
+				skipped = 1;
+			}
+
+			count -= skipped;
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/**
+ * Prefixes every line written by a thread that processes an installation with the root of that
+ * installation, so that the logs of installations processed at the same time can be told apart.
+ * Lines are collected per thread and written whole; threads without a prefix write through.
+ */
+public class TargetOutputStream extends OutputStream {
+	
+	/**
+	 * The prefix of the current thread. Worker threads started while processing an installation
+	 * inherit it.
+	 */
+	private static final InheritableThreadLocal<String> prefix = new InheritableThreadLocal<>();
+	
+	private final PrintStream original;
+	
+	private final ThreadLocal<ByteArrayOutputStream> lines = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+	public TargetOutputStream(PrintStream out) {
+		original = out;
+	}
+	
+	/**
+	 * Sets the prefix of the current thread.
+	 * @param root the installation the thread processes, or {@code null} to remove the prefix
+	 */
+	public static void setTarget(Path root) {
+		if (root == null) {
+			prefix.remove();
+		} else {
+			String name = root.toString();
+			prefix.set("[" + (name.isEmpty() ? "." : name) + "] ");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (prefix.get() == null) {
+			original.write(b, off, len);
+			return;
+		}
+		
+		ByteArrayOutputStream line = lines.get();
+		int end = off + len;
+		
+		for (int i = off; i < end; ++i) {
+			if (b[i] == '\n') {
+				line.write(b, off, i + 1 - off);
+				writeLine(line);
+				off = i + 1;
+			}
+		}
+		
+		line.write(b, off, end - off);
+	}
+	
+	private void writeLine(ByteArrayOutputStream line) {
+		byte[] start = prefix.get().getBytes();
+		
+		synchronized (original) {
+			original.write(start, 0, start.length);
+			original.write(line.toByteArray(), 0, line.size());
+		}
+		
+		line.reset();
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		original.flush();
+	}
+
+}
@@ -0,0 +1,83 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Collects the output of tasks that {@link Workers} runs on worker threads, so that it can be
+ * printed after the description of each task in list order. Threads started by a task write to the
+ * capture of that task. Threads outside of any task write through.
+ */
+public class TaskOutputStream extends OutputStream {
+
+	/**
+	 * The output of one task.
+	 */
+	static class Capture {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private boolean closed = false;
+
+		private synchronized boolean write(byte[] b, int off, int len) {
+			if (closed) return false;
+			bytes.write(b, off, len);
+			return true;
+		}
+
+		/**
+		 * Stops collecting output and writes what was collected. Later output of the task, if any,
+		 * is written through.
+		 * @param out the stream to write to, or {@code null} to discard the output
+		 */
+		synchronized void close(PrintStream out) {
+			if (closed) return;
+			closed = true;
+			if (out != null) out.write(bytes.toByteArray(), 0, bytes.size());
+		}
+
+	}
+
+	private static final InheritableThreadLocal<Capture> capture = new InheritableThreadLocal<>();
+
+	private final PrintStream original;
+
+	public TaskOutputStream(PrintStream out) {
+		original = out;
+	}
+
+	/**
+	 * Sets the capture of the current thread.
+	 * @param output the capture, or {@code null} to write through
+	 * @return the previous capture of the current thread
+	 */
+	static Capture setCapture(Capture output) {
+		Capture previous = capture.get();
+		if (output == null) {
+			capture.remove();
+		} else {
+			capture.set(output);
+		}
+		return previous;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		Capture output = capture.get();
+		if (output == null || !output.write(b, off, len)) {
+			original.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		original.flush();
+	}
+
+}
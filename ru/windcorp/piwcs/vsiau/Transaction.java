@@ -0,0 +1,562 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Collects the changes of an update in a staging directory next to the installation and applies
+ * them all at once.
+ * <p>
+ * New file contents are written into the staging directory and deletions are only recorded until
+ * {@link #commit()} is called. Commit moves replaced and deleted files into a backup directory and
+ * the staged files into place, logging every rename in a journal first. If the commit fails, or if
+ * the process dies during the commit, the journal is replayed in reverse to restore the previous
+ * state; see {@link #recover(Path)}.
+ * <p>
+ * The transaction also keeps the {@link FileStates} index of the installation up to date, so that
+ * files that would not change can be skipped.
+ */
+public class Transaction {
+
+	private static final String STAGING_NAME = Main.SHORT_NAME + "_staging";
+
+	private static final String MOVE = "move";
+	private static final String MKDIR = "mkdir";
+	private static final String RMDIR = "rmdir";
+	private static final String COMMITTED = "committed";
+
+	private final Path root;
+	private final Path staging;
+	private final Path files;
+	private final Path backup;
+	private final Path journal;
+
+	/**
+	 * Pending changes: path -> staged file, or {@code null} if the path is deleted. Kept in path
+	 * order, so that changes are committed in the same order however many threads staged them.
+	 */
+	private final Map<Path, Path> changes = new TreeMap<>();
+	private int nextFile = 0;
+
+	/**
+	 * CRC-32 of the staged files where it is known: path -> CRC-32.
+	 */
+	private final Map<Path, Long> crcs = new HashMap<>();
+	private final FileStates states;
+
+	private final List<String[]> records = new ArrayList<>();
+	private FileChannel journalChannel = null;
+	private Writer journalWriter = null;
+
+	/**
+	 * Starts a transaction for the installation in the given directory.
+	 */
+	public Transaction(Path root) throws IOException {
+		this.root = root;
+		this.staging = getStaging(root);
+		this.files = staging.resolve("files");
+		this.backup = staging.resolve("backup");
+		this.journal = staging.resolve("journal");
+
+		if (Files.exists(staging)) {
+			throw new IOException("Staging directory " + staging + " already exists");
+		}
+
+		this.states = FileStates.load(root);
+		Files.createDirectories(files);
+	}
+
+	private static Path getStaging(Path root) {
+		return root.resolve(STAGING_NAME);
+	}
+
+	/**
+	 * Finishes or reverts a transaction left behind by a process that did not exit cleanly.
+	 */
+	public static void recover(Path root) throws IOException {
+		Path staging = getStaging(root);
+		if (!Files.exists(staging)) return;
+
+		Path journal = staging.resolve("journal");
+
+		if (Files.exists(journal)) {
+			List<String[]> records = new ArrayList<>();
+			boolean committed = false;
+
+			String[] lines = new String(Files.readAllBytes(journal), StandardCharsets.UTF_8).split("\n", -1);
+
+			// Only terminated records are complete; the operation of an incomplete one never started
+			for (int i = 0; i < lines.length - 1; ++i) {
+				if (lines[i].equals(COMMITTED)) {
+					committed = true;
+				} else if (!lines[i].isEmpty()) {
+					records.add(parseRecord(journal, lines[i]));
+				}
+			}
+
+			if (!lines[lines.length - 1].isEmpty()) {
+				System.out.println("Ignoring incomplete last journal record \"" + lines[lines.length - 1] + "\"");
+			}
+
+			if (committed) {
+				System.out.println("Previous update was committed but not cleaned up, cleaning up");
+			} else {
+				System.out.println("Previous update was interrupted, rolling back " + records.size() + " operations");
+				rollback(root, records);
+			}
+		} else {
+			System.out.println("Discarding changes staged by an interrupted update");
+		}
+
+		deleteRecursively(staging);
+	}
+
+	/**
+	 * @throws IOException if the line is not a record that {@link #record(String, Path...)} writes
+	 */
+	private static String[] parseRecord(Path journal, String line) throws IOException {
+		String[] record = line.split("\t", -1);
+
+		int expected;
+		switch (record[0]) {
+		case MOVE:
+			expected = 3;
+			break;
+		case MKDIR:
+		case RMDIR:
+			expected = 2;
+			break;
+		default:
+			expected = -1;
+			break;
+		}
+
+		if (record.length != expected) {
+			throw new IOException("Corrupted journal " + journal + ": cannot parse record \"" + line + "\". "
+					+ "Restore the installation by hand, then delete " + journal.getParent());
+		}
+
+		return record;
+	}
+
+	/**
+	 * Allocates a file in the staging directory to write new contents to. The file has no effect
+	 * until it is passed to {@link #put(Path, Path)}.
+	 */
+	public synchronized Path allocate() {
+		return files.resolve(Integer.toString(nextFile++));
+	}
+
+	/**
+	 * Schedules a file to be replaced with the contents of a staged file.
+	 */
+	public void put(Path path, Path staged) throws IOException {
+		put(path, staged, -1);
+	}
+
+	/**
+	 * Schedules a file to be replaced with the contents of a staged file.
+	 * @param crc the CRC-32 of the staged file, or {@code -1} if it is not known
+	 */
+	public void put(Path path, Path staged, long crc) throws IOException {
+		Path previous;
+		synchronized (this) {
+			previous = changes.put(path.normalize(), staged);
+
+			if (crc >= 0) {
+				crcs.put(path.normalize(), crc);
+			} else {
+				crcs.remove(path.normalize());
+			}
+		}
+		if (previous != null) Files.deleteIfExists(previous);
+	}
+
+	/**
+	 * Checks whether a file already has the given contents, so that writing them would change
+	 * nothing. Paths with pending changes to them or to their parents are never considered
+	 * unchanged.
+	 */
+	public boolean isUnchanged(Path path, long size, long crc) throws IOException {
+		synchronized (this) {
+			for (Path current = path.normalize(); current != null; current = current.getParent()) {
+				if (changes.containsKey(current)) return false;
+			}
+		}
+
+		return states.matches(path, size, crc);
+	}
+
+	/**
+	 * Schedules a file or an empty directory to be deleted. Parent directories that become empty
+	 * are deleted as well.
+	 */
+	public void delete(Path path) throws IOException {
+		Path previous;
+		synchronized (this) {
+			previous = changes.put(path.normalize(), null);
+			crcs.remove(path.normalize());
+		}
+		if (previous != null) Files.deleteIfExists(previous);
+	}
+
+	/**
+	 * @return the file that holds the current contents of the path with all pending changes applied,
+	 * or {@code null} if the path is deleted
+	 */
+	public synchronized Path resolve(Path path) {
+		path = path.normalize();
+
+		if (changes.containsKey(path)) {
+			return changes.get(path);
+		}
+
+		return root.resolve(path);
+	}
+
+	public boolean exists(Path path) {
+		Path resolved = resolve(path);
+		return resolved != null && Files.exists(resolved);
+	}
+
+	/**
+	 * Applies all pending changes. If this fails, all changes that have been applied are reverted.
+	 */
+	public synchronized void commit() throws IOException {
+		System.out.println("Committing " + changes.size() + " changes...");
+
+		// Staged files must be on the disk before they replace the installed ones
+		WriteStrategy.sync();
+
+		journalChannel = FileChannel.open(journal,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		journalWriter = new BufferedWriter(Channels.newWriter(journalChannel, StandardCharsets.UTF_8.newEncoder(), -1));
+
+		try {
+			// A file deleted to make room for a directory must go before the files put into it
+			Set<Path> parents = new HashSet<>();
+			for (Map.Entry<Path, Path> change : changes.entrySet()) {
+				if (change.getValue() == null) continue;
+				
+				for (Path parent = change.getKey().getParent(); parent != null; parent = parent.getParent()) {
+					parents.add(parent);
+				}
+			}
+
+			List<Path> deletedFirst = new ArrayList<>();
+			List<Path> deleted = new ArrayList<>();
+			for (Map.Entry<Path, Path> change : changes.entrySet()) {
+				if (change.getValue() == null) {
+					(parents.contains(change.getKey()) ? deletedFirst : deleted).add(change.getKey());
+				}
+			}
+
+			Metrics.Phase.DELETE.expect(0, deletedFirst.size() + deleted.size());
+
+			commitDeletesTimed(deletedFirst);
+
+			for (Map.Entry<Path, Path> change : changes.entrySet()) {
+				if (change.getValue() != null) {
+					commitPut(change.getKey(), change.getValue());
+				}
+			}
+
+			commitDeletesTimed(deleted);
+
+			for (Path path : changes.keySet()) {
+				WriteStrategy.changed(root.resolve(path).getParent());
+			}
+			WriteStrategy.sync();
+
+			journalWriter.write(COMMITTED + "\n");
+			journalWriter.flush();
+			if (Settings.getDurability() != WriteStrategy.Durability.NONE) {
+				journalChannel.force(true);
+			}
+			journalWriter.close();
+		} catch (IOException | RuntimeException e) {
+			journalWriter.close();
+			System.out.println("Commit failed, rolling back " + records.size() + " operations");
+			rollback(root, records);
+			deleteRecursively(staging);
+			throw e;
+		}
+
+		deleteRecursively(staging);
+		saveStates(true);
+	}
+
+	/**
+	 * Discards all pending changes. Does nothing if the transaction has been committed.
+	 */
+	public synchronized void discard() throws IOException {
+		deleteRecursively(staging);
+		saveStates(false);
+	}
+
+	/**
+	 * Saves the file state index. The index is only an optimization, so failing to save it does
+	 * not fail the update.
+	 * @param committed whether the changes have been applied and should be recorded
+	 */
+	private void saveStates(boolean committed) {
+		try {
+			if (committed) {
+				for (Map.Entry<Path, Path> change : changes.entrySet()) {
+					Long crc = crcs.get(change.getKey());
+
+					if (crc != null) {
+						states.record(change.getKey(), crc);
+					} else {
+						states.remove(change.getKey());
+					}
+				}
+			}
+
+			states.save();
+		} catch (IOException e) {
+			System.out.println("Could not save the file state index: " + e);
+		}
+	}
+
+	private void commitPut(Path path, Path staged) throws IOException {
+		Path target = root.resolve(path);
+		Path saved = backup.resolve(path);
+		boolean exists = Files.exists(target);
+
+		// All operations of the put are journaled at once; rollback skips those that did not happen
+		List<Path> created = recordDirectories(target.getParent());
+		if (exists) created.addAll(recordDirectories(saved.getParent()));
+		if (exists) record(MOVE, target, saved);
+		record(MOVE, staged, target);
+		syncJournal();
+
+		for (Path dir : created) {
+			Files.createDirectory(dir);
+		}
+		if (exists) Files.move(target, saved, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void commitDeletesTimed(List<Path> paths) throws IOException {
+		if (paths.isEmpty()) return;
+		
+		Metrics.Phase.DELETE.begin();
+		try {
+			commitDeletes(paths);
+		} finally {
+			Metrics.Phase.DELETE.end();
+		}
+	}
+
+	/**
+	 * Deletes files and directories, along with parent directories that become empty. Files are
+	 * grouped by their directory and moved into the backup directory in parallel. Directories are
+	 * pruned afterwards, deepest first, so that each one is listed at most once. The update program
+	 * has already reported them, see {@link EmptyDirectories}.
+	 */
+	private void commitDeletes(List<Path> paths) throws IOException {
+		Map<Path, List<Path>> files = new LinkedHashMap<>();
+		// Deepest first; parents of a directory are only added once the directory is gone
+		TreeSet<Path> directories = new TreeSet<>(
+				Comparator.comparingInt(Path::getNameCount).reversed().thenComparing(Comparator.naturalOrder())
+		);
+
+		for (Path path : paths) {
+			Path target = root.resolve(path);
+
+			if (Files.notExists(target)) {
+				System.out.println("  not deleting: " + path + " does not exist");
+				Metrics.Phase.DELETE.add(0, 1);
+			} else if (Files.isRegularFile(target)) {
+				files.computeIfAbsent(path.getParent(), parent -> new ArrayList<>()).add(path);
+			} else if (Files.isDirectory(target)) {
+				directories.add(path);
+				Metrics.Phase.DELETE.add(0, 1);
+			} else {
+				System.out.println("  not deleting: " + path + " does not denote a file or a directory");
+				Metrics.Phase.DELETE.add(0, 1);
+			}
+		}
+
+		for (Path parent : files.keySet()) {
+			createDirectories((parent == null) ? backup : backup.resolve(parent));
+			if (parent != null) directories.add(parent);
+		}
+
+		moveToBackup(files.values().stream().flatMap(List::stream).collect(Collectors.toList()));
+
+		while (!directories.isEmpty()) {
+			Path dir = directories.pollFirst();
+			Path target = root.resolve(dir);
+
+			try (Stream<Path> entries = Files.list(target)) {
+				if (entries.findAny().isPresent()) {
+					continue;
+				}
+			}
+
+			record(RMDIR, target);
+			syncJournal();
+			Files.delete(target);
+
+			if (dir.getParent() != null) directories.add(dir.getParent());
+		}
+	}
+
+	/**
+	 * Moves files into the backup directory, which must already contain their parent directories.
+	 */
+	private void moveToBackup(List<Path> paths) throws IOException {
+		for (Path path : paths) {
+			record(MOVE, root.resolve(path), backup.resolve(path));
+		}
+		syncJournal();
+		
+		ExecutorService executor = Workers.newPool(Math.max(1, Math.min(Settings.getThreads(), paths.size())), "delete");
+
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (Path path : paths) {
+				futures.add(executor.submit(() -> {
+					Files.move(root.resolve(path), backup.resolve(path), StandardCopyOption.ATOMIC_MOVE);
+					Metrics.Phase.DELETE.add(0, 1);
+					return null;
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				Workers.await(future);
+			}
+		} catch (AbortException e) {
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void createDirectories(Path dir) throws IOException {
+		List<Path> created = recordDirectories(dir);
+		syncJournal();
+
+		for (Path path : created) {
+			Files.createDirectory(path);
+		}
+	}
+
+	/**
+	 * Journals the creation of a directory and of its missing parents without creating them.
+	 * @return the directories to create, outermost first
+	 */
+	private List<Path> recordDirectories(Path dir) throws IOException {
+		List<Path> result = new ArrayList<>();
+		for (Path current = dir; current != null && !Files.isDirectory(current); current = current.getParent()) {
+			result.add(current);
+		}
+		Collections.reverse(result);
+
+		for (Path path : result) {
+			record(MKDIR, path);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a journal record. Records are terminated by a line feed, so that a record cut short by
+	 * a crash can be told from a complete one. The journal must be forced with
+	 * {@link #syncJournal()} before the operation is performed.
+	 */
+	private void record(String operation, Path... paths) throws IOException {
+		String[] record = new String[paths.length + 1];
+		record[0] = operation;
+		for (int i = 0; i < paths.length; ++i) {
+			record[i + 1] = paths[i].toString();
+		}
+
+		synchronized (records) {
+			records.add(record);
+			journalWriter.write(String.join("\t", record) + "\n");
+		}
+	}
+
+	/**
+	 * Forces the journal to the disk, so that a rollback after a crash knows of every operation
+	 * that may have been performed.
+	 */
+	private void syncJournal() throws IOException {
+		synchronized (records) {
+			journalWriter.flush();
+			journalChannel.force(false);
+		}
+	}
+
+	private static void rollback(Path root, List<String[]> records) throws IOException {
+		List<String[]> reversed = new ArrayList<>(records);
+		Collections.reverse(reversed);
+
+		for (String[] record : reversed) {
+			switch (record[0]) {
+			case MOVE:
+				Path from = root.getFileSystem().getPath(record[1]);
+				Path to = root.getFileSystem().getPath(record[2]);
+				if (Files.exists(to) && Files.notExists(from)) {
+					Files.move(to, from, StandardCopyOption.ATOMIC_MOVE);
+				}
+				break;
+			case MKDIR:
+				try {
+					Files.deleteIfExists(root.getFileSystem().getPath(record[1]));
+				} catch (DirectoryNotEmptyException e) {
+					// Leave it be
+				}
+				break;
+			case RMDIR:
+				Path dir = root.getFileSystem().getPath(record[1]);
+				if (Files.notExists(dir)) {
+					Files.createDirectory(dir);
+				}
+				break;
+			default:
+				throw new IOException("Corrupted journal: unknown operation " + record[0]);
+			}
+		}
+	}
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		if (Files.notExists(dir)) return;
+
+		List<Path> paths;
+		try (Stream<Path> stream = Files.walk(dir)) {
+			paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+}
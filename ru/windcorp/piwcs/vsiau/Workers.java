@@ -0,0 +1,130 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent file operations on a pool of worker threads.
+ */
+public class Workers {
+
+	@FunctionalInterface
+	public interface Task {
+		void run() throws IOException, AbortException;
+	}
+
+	/**
+	 * Runs all tasks and waits for them to complete. The description of each task is printed once it
+	 * and all tasks before it have completed, followed by the output of the task, so the log does not
+	 * depend on scheduling. With a single thread the tasks run in the calling thread and each
+	 * description is printed before its task. Output is collected per task only when
+	 * {@link TaskOutputStream} is installed.
+	 * @param descriptions the messages to print, one per task
+	 * @param tasks the tasks to run
+	 * @param threads the number of worker threads
+	 */
+	public static void run(List<String> descriptions, List<? extends Task> tasks, int threads)
+			throws IOException, AbortException {
+		run(descriptions, tasks, null, threads);
+	}
+
+	/**
+	 * Same as {@link #run(List, List, int)}, but the tasks are started in the given order. The
+	 * descriptions are still printed in list order.
+	 * @param submissionOrder indices of the tasks in the order they should be started, or
+	 * {@code null} to start them in list order
+	 */
+	public static void run(List<String> descriptions, List<? extends Task> tasks, int[] submissionOrder, int threads)
+			throws IOException, AbortException {
+		if (threads <= 1 || tasks.size() <= 1) {
+			for (int i = 0; i < tasks.size(); ++i) {
+				System.out.println(descriptions.get(i));
+				tasks.get(i).run();
+			}
+			return;
+		}
+
+		ExecutorService executor = newPool(Math.min(threads, tasks.size()), "worker");
+
+		List<TaskOutputStream.Capture> outputs = new ArrayList<>();
+		for (int i = 0; i < tasks.size(); ++i) {
+			outputs.add(new TaskOutputStream.Capture());
+		}
+
+		try {
+			List<Future<Void>> futures = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+			for (int i = 0; i < tasks.size(); ++i) {
+				int index = (submissionOrder == null) ? i : submissionOrder[i];
+				Task task = tasks.get(index);
+				TaskOutputStream.Capture output = outputs.get(index);
+				
+				futures.set(index, executor.submit(() -> {
+					TaskOutputStream.Capture previous = TaskOutputStream.setCapture(output);
+					try {
+						task.run();
+					} finally {
+						TaskOutputStream.setCapture(previous);
+					}
+					return null;
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					await(futures.get(i));
+				} finally {
+					// A failed task is still reported with its output, as in the serial case
+					PrintStream out = System.out;
+					synchronized (out) {
+						out.println(descriptions.get(i));
+						outputs.get(i).close(out);
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			
+			// Tasks after a failed one would not have run in the serial case
+			for (TaskOutputStream.Capture output : outputs) {
+				output.close(null);
+			}
+		}
+	}
+
+	public static ExecutorService newPool(int threads, String name) {
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, Main.SHORT_NAME + " " + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Waits for a task and rethrows its failure.
+	 */
+	public static <T> T await(Future<T> future) throws IOException, AbortException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof AbortException) throw (AbortException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Decides how installed files reach the disk. Every file the updater writes into an installation
+ * goes through this class:
+ * <ul>
+ * <li>When the size of a file is known, the length of the file is set before anything is written.
+ * NTFS then allocates the file in one piece instead of growing it with every write.
+ * <li>Data that does not come from another file is copied through a direct buffer of
+ * {@code --write-buffer} KiB that every thread reuses, so it is written in large blocks without
+ * copying it through the heap once more.
+ * <li>Files are made durable according to {@link Settings#getDurability()}.
+ * </ul>
+ */
+public class WriteStrategy {
+
+	public enum Durability {
+		/**
+		 * Leave flushing to the operating system.
+		 */
+		NONE,
+
+		/**
+		 * Force every file to the disk as soon as it is written.
+		 */
+		FILE,
+
+		/**
+		 * Force all files written since the last {@link WriteStrategy#sync()}, and the directories
+		 * that contain them, to the disk at once, many in parallel.
+		 */
+		BATCH;
+	}
+
+	@FunctionalInterface
+	public interface Writer {
+		/**
+		 * @return the number of bytes written
+		 */
+		long write(FileChannel channel) throws IOException;
+	}
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<>();
+
+	/**
+	 * Files and directories to force at the next {@link #sync()}. Each installation processed by
+	 * {@link Action#runOnTargets(List, Action.TargetTask)} has its own set, which the worker threads
+	 * started for it inherit; other threads share one set.
+	 */
+	private static final Set<Path> sharedPending = ConcurrentHashMap.newKeySet();
+	private static final InheritableThreadLocal<Set<Path>> pending = new InheritableThreadLocal<Set<Path>>() {
+		@Override
+		protected Set<Path> initialValue() {
+			return sharedPending;
+		}
+	};
+
+	/**
+	 * Creates or truncates a file to write to, setting its length if it is known and preallocation
+	 * is enabled. The file must be passed to {@link #finish(FileChannel, Path, long)} once written.
+	 * @param size the size the file will have, or {@code -1} if it is not known
+	 */
+	public static FileChannel create(Path file, long size) throws IOException {
+		@SuppressWarnings("resource")
+		RandomAccessFile output = new RandomAccessFile(file.toFile(), "rw");
+
+		try {
+			// Unlike writing past the end, setting the length does not make NTFS fill the gap with zeros
+			output.setLength((size > 0 && Settings.isPreallocate()) ? size : 0);
+		} catch (IOException e) {
+			output.close();
+			throw e;
+		}
+
+		return output.getChannel();
+	}
+
+	/**
+	 * Trims a file created by {@link #create(Path, long)} to the size that was actually written and
+	 * makes it durable as configured. The channel is not closed.
+	 */
+	public static void finish(FileChannel channel, Path file, long written) throws IOException {
+		if (channel.size() > written) {
+			channel.truncate(written);
+		}
+
+		switch (Settings.getDurability()) {
+		case FILE:
+			channel.force(true);
+			break;
+		case BATCH:
+			pending.get().add(file);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Writes a file.
+	 * @param size the size the file will have, or {@code -1} if it is not known
+	 * @return the number of bytes written
+	 */
+	public static long write(Path file, long size, Writer writer) throws IOException {
+		try (FileChannel channel = create(file, size)) {
+			long written = writer.write(channel);
+			finish(channel, file, written);
+			return written;
+		}
+	}
+
+	/**
+	 * Writes the contents of a channel into a file. The source is not closed.
+	 * @param size the size the file will have, or {@code -1} if it is not known
+	 * @return the number of bytes written
+	 */
+	public static long write(Path file, long size, ReadableByteChannel source) throws IOException {
+		return write(file, size, channel -> copy(source, channel));
+	}
+
+	/**
+	 * Copies the contents of a channel to the beginning of a file through the buffer of the
+	 * current thread. The buffer is filled before every write.
+	 * @return the number of bytes copied
+	 */
+	public static long copy(ReadableByteChannel source, FileChannel destination) throws IOException {
+		ByteBuffer buffer = getBuffer();
+		long position = 0;
+		boolean end = false;
+
+		while (!end) {
+			buffer.clear();
+
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer) < 0) {
+					end = true;
+					break;
+				}
+			}
+
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += destination.write(buffer, position);
+			}
+		}
+
+		return position;
+	}
+
+	private static ByteBuffer getBuffer() {
+		ByteBuffer buffer = BUFFERS.get();
+
+		if (buffer == null || buffer.capacity() != Settings.getWriteBufferSize()) {
+			buffer = ByteBuffer.allocateDirect(Settings.getWriteBufferSize());
+			BUFFERS.set(buffer);
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Schedules a file or directory that was changed without {@link #finish(FileChannel, Path, long)},
+	 * for example by moving it, to be forced at the next {@link #sync()}.
+	 */
+	public static void changed(Path path) {
+		if (Settings.getDurability() == Durability.BATCH) {
+			pending.get().add(path);
+		}
+	}
+
+	/**
+	 * Gives the current thread, and the worker threads it starts from now on, a set of files to
+	 * force of its own, or returns it to the shared set.
+	 * @param isolated {@code true} for a new set, {@code false} for the shared set
+	 */
+	public static void isolate(boolean isolated) {
+		if (isolated) {
+			pending.set(ConcurrentHashMap.newKeySet());
+		} else {
+			pending.remove();
+		}
+	}
+
+	/**
+	 * Forces the files and directories scheduled so far by the current installation to the disk,
+	 * followed by every directory that contains them. Does nothing unless the durability mode is
+	 * {@link Durability#BATCH}.
+	 */
+	public static void sync() throws IOException {
+		Set<Path> scheduled = pending.get();
+		if (Settings.getDurability() != Durability.BATCH) return;
+
+		// Another thread of the same installation may still be forcing files this sync must wait for
+		synchronized (scheduled) {
+			sync(scheduled);
+		}
+	}
+
+	private static void sync(Set<Path> scheduled) throws IOException {
+		if (scheduled.isEmpty()) return;
+
+		List<Path> files = new ArrayList<>(scheduled);
+		scheduled.removeAll(files);
+
+		Set<Path> directories = new HashSet<>();
+		for (Path file : files) {
+			for (Path dir = file.toAbsolutePath().getParent(); dir != null; dir = dir.getParent()) {
+				directories.add(dir);
+			}
+		}
+
+		System.out.println("Flushing " + files.size() + " files and " + directories.size() + " directories to disk...");
+
+		Metrics.Phase.SYNC.expect(0, files.size());
+		Metrics.Phase.SYNC.begin();
+		try {
+			force(files);
+			force(directories);
+		} finally {
+			Metrics.Phase.SYNC.end();
+		}
+	}
+
+	/**
+	 * Forces files and directories in parallel so that the disk can reorder the writes.
+	 */
+	private static void force(Collection<Path> paths) throws IOException {
+		ExecutorService executor = Workers.newPool(Math.max(1, Math.min(Settings.getThreads(), paths.size())), "sync");
+
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (Path path : paths) {
+				futures.add(executor.submit(() -> {
+					force(path);
+					Metrics.Phase.SYNC.add(0, 1);
+					return null;
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				Workers.await(future);
+			}
+		} catch (AbortException e) {
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Forces a file or a directory to the disk. Paths that no longer exist are skipped. Some
+	 * systems, Windows among them, cannot open directories for this; their file systems are
+	 * expected to keep directory entries consistent on their own.
+	 */
+	private static void force(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (IOException e) {
+				// Not supported here
+			}
+			return;
+		}
+
+		// Windows only flushes files opened for writing
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		} catch (NoSuchFileException e) {
+			// Deleted or moved since; whoever moved it schedules its new path
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package ru.windcorp.piwcs.vsiau;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a ZIP archive to find where each entry is stored in the file.
+ * {@link java.util.zip.ZipFile} does not expose this information.
+ */
+public class ZipIndex {
+
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_SIZE = 30;
+	private static final int CENTRAL_SIZE = 46;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	private static final long MAX_COMMENT_LENGTH = 0xFFFF;
+
+	private final Map<String, Long> localHeaderOffsets = new HashMap<>();
+
+	private ZipIndex() {
+	}
+
+	public static ZipIndex read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ZipIndex index = new ZipIndex();
+			index.readCentralDirectory(channel);
+			return index;
+		}
+	}
+
+	/**
+	 * @return the offset of the local file header of the entry, or {@code -1} if there is no such entry
+	 */
+	public long getLocalHeaderOffset(String name) {
+		Long result = localHeaderOffsets.get(name);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * @param channel the archive that this index was read from
+	 * @return the offset of the first byte of the entry's data, or {@code -1} if there is no such entry
+	 */
+	public long getDataOffset(FileChannel channel, String name) throws IOException {
+		long offset = getLocalHeaderOffset(name);
+		if (offset < 0) return -1;
+		
+		ByteBuffer header = read(channel, offset, LOCAL_SIZE);
+		if (header.getInt(0) != LOCAL_SIGNATURE) {
+			throw new ZipException("Malformed local file header of " + name);
+		}
+		
+		int nameLength = header.getShort(26) & 0xFFFF;
+		int extraLength = header.getShort(28) & 0xFFFF;
+		
+		return offset + LOCAL_SIZE + nameLength + extraLength;
+	}
+	
+	private void readCentralDirectory(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long tailStart = Math.max(0, size - END_SIZE - MAX_COMMENT_LENGTH);
+		ByteBuffer tail = read(channel, tailStart, (int) (size - tailStart));
+
+		int end = -1;
+		for (int i = tail.limit() - END_SIZE; i >= 0; --i) {
+			if (tail.getInt(i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+
+		if (end < 0) {
+			throw new ZipException("End of central directory not found");
+		}
+
+		long entries = tail.getShort(end + 10) & 0xFFFF;
+		long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+		int locator = end - ZIP64_LOCATOR_SIZE;
+		if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+			long zip64End = tail.getLong(locator + 8);
+			ByteBuffer record = read(channel, zip64End, 56);
+
+			if (record.getInt(0) != ZIP64_END_SIGNATURE) {
+				throw new ZipException("ZIP64 end of central directory not found");
+			}
+
+			entries = record.getLong(32);
+			directorySize = record.getLong(40);
+			directoryOffset = record.getLong(48);
+		}
+
+		if (directorySize > Integer.MAX_VALUE) {
+			throw new ZipException("Central directory is too large");
+		}
+
+		ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+
+		int position = 0;
+		for (long i = 0; i < entries; ++i) {
+			if (directory.getInt(position) != CENTRAL_SIGNATURE) {
+				throw new ZipException("Malformed central directory");
+			}
+
+			long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+			long uncompressedSize = directory.getInt(position + 24) & 0xFFFFFFFFL;
+			int nameLength = directory.getShort(position + 28) & 0xFFFF;
+			int extraLength = directory.getShort(position + 30) & 0xFFFF;
+			int commentLength = directory.getShort(position + 32) & 0xFFFF;
+			long offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+			byte[] nameBytes = new byte[nameLength];
+			directory.position(position + CENTRAL_SIZE);
+			directory.get(nameBytes);
+			String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+			if (offset == 0xFFFFFFFFL) {
+				offset = readZip64Offset(
+						directory, position + CENTRAL_SIZE + nameLength, extraLength,
+						uncompressedSize == 0xFFFFFFFFL, compressedSize == 0xFFFFFFFFL
+				);
+			}
+
+			localHeaderOffsets.put(name, offset);
+
+			position += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private static long readZip64Offset(
+			ByteBuffer directory, int start, int length,
+			boolean skipUncompressed, boolean skipCompressed
+	) throws ZipException {
+		int position = start;
+		while (position + 4 <= start + length) {
+			int id = directory.getShort(position) & 0xFFFF;
+			int size = directory.getShort(position + 2) & 0xFFFF;
+
+			if (id == ZIP64_EXTRA_ID) {
+				int field = position + 4;
+				if (skipUncompressed) field += 8;
+				if (skipCompressed) field += 8;
+				return directory.getLong(field);
+			}
+
+			position += 4 + size;
+		}
+
+		throw new ZipException("ZIP64 extra field not found");
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new ZipException("Unexpected end of file");
+			}
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+}
@@ -0,0 +1,151 @@
+package ru.windcorp.piwcs.vsiau;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ActionUpdateTest {
+
+	private static final String HEADER = "1\n1.0.0\n1.0.1\n";
+
+	@TempDir
+	Path scratch;
+
+	private static byte[] contents(int entry) {
+		return ("entry " + entry + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void write(Path file, byte[] contents) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, contents);
+	}
+
+	/**
+	 * Writes entries {@code e0} to {@code e7}.
+	 */
+	private Path writePatch() throws IOException {
+		Path patch = scratch.resolve("patch.zip");
+
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(patch))) {
+			for (int i = 0; i < 8; ++i) {
+				zip.putNextEntry(new ZipEntry("e" + i));
+				zip.write(contents(i));
+				zip.closeEntry();
+			}
+		}
+
+		return patch;
+	}
+
+	/**
+	 * Runs a program and commits its changes.
+	 * @return the log of the program, without the commit
+	 */
+	private String run(Path root, String program, int threads) throws IOException, AbortException {
+		PrintStream original = System.out;
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(new TaskOutputStream(new PrintStream(log, true)), true));
+
+		String result;
+		try (Archive archive = Archive.open(writePatch())) {
+			Transaction tx = new Transaction(root);
+			new ActionUpdate.Program(new StringReader(program), archive).run(tx, threads);
+			result = log.toString().replace(System.lineSeparator(), "\n");
+			tx.commit();
+		} finally {
+			System.setOut(original);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Extracts every entry, half of them over files that are already up to date, and deletes a
+	 * missing file.
+	 */
+	private String runSkipping(Path root, int threads) throws IOException, AbortException {
+		StringBuilder program = new StringBuilder(HEADER);
+
+		for (int i = 0; i < 8; ++i) {
+			write(root.resolve("mods").resolve("f" + i + ".jar"), (i % 2 == 0) ? contents(i) : contents(-i));
+			program.append("Extract; e").append(i).append("; mods/f").append(i).append(".jar\n");
+		}
+		program.append("Delete; mods/missing.jar\n");
+
+		return run(root, program.toString(), threads);
+	}
+
+	@Test
+	void skippedInstructionsAreLoggedUnderTheirDescription() throws IOException, AbortException {
+		String serial = runSkipping(scratch.resolve("serial"), 1);
+		String concurrent = runSkipping(scratch.resolve("concurrent"), 4);
+
+		assertEquals(serial, concurrent);
+		for (int i = 0; i < 8; i += 2) {
+			String extracting = "Extracting mods/f" + i + ".jar\n";
+			String skipped = "  not extracting: mods/f" + i + ".jar is up to date\n";
+			assertTrue(concurrent.contains(extracting + skipped), concurrent);
+		}
+		assertTrue(concurrent.contains("Deleting mods/missing.jar\n  not deleting: mods/missing.jar does not exist\n"), concurrent);
+	}
+
+	/**
+	 * Deletes files from two directory trees in one batch while a file is extracted into one of
+	 * them.
+	 */
+	private String runPruning(Path root, int threads) throws IOException, AbortException {
+		write(root.resolve("a/x.jar"), contents(-1));
+		write(root.resolve("a/b/y.jar"), contents(-2));
+		write(root.resolve("d/e/f.jar"), contents(-3));
+		write(root.resolve("keep/z.jar"), contents(-4));
+
+		return run(root, HEADER
+				+ "Delete; a/x.jar\n"
+				+ "Delete; a/b/y.jar\n"
+				+ "Delete; d/e/f.jar\n"
+				+ "Extract; e0; d/g.jar\n"
+				+ "Delete; keep/z.jar\n"
+				+ "Extract; e1; keep/z.jar\n",
+				threads);
+	}
+
+	@Test
+	void emptiedDirectoriesAreLoggedUnderTheDeletionThatEmptiesThem() throws IOException, AbortException {
+		String expected = "Applying update...\n"
+				+ "Deleting a/x.jar\n"
+				+ "Deleting a/b/y.jar\n"
+				+ "  also deleting empty directory a/b\n"
+				+ "  also deleting empty directory a\n"
+				+ "Deleting d/e/f.jar\n"
+				+ "  also deleting empty directory d/e\n"
+				+ "  also deleting empty directory d\n"
+				+ "Extracting d/g.jar\n"
+				+ "Deleting keep/z.jar\n"
+				+ "  also deleting empty directory keep\n"
+				+ "Extracting keep/z.jar\n";
+
+		for (int threads : new int[] { 1, 4 }) {
+			Path root = scratch.resolve("threads" + threads);
+			assertEquals(expected, runPruning(root, threads));
+
+			assertFalse(Files.exists(root.resolve("a")));
+			assertFalse(Files.exists(root.resolve("d/e")));
+			assertTrue(Files.isRegularFile(root.resolve("d/g.jar")));
+			assertTrue(Files.isRegularFile(root.resolve("keep/z.jar")));
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+package ru.windcorp.piwcs.vsiau;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that update programs give the same result whether their instructions run concurrently or
+ * one after another. Random programs extract into and delete a small set of paths that are each
+ * other's parents and children, so most instructions conflict with some other instruction. Each
+ * program is applied to two copies of the same installation, once with a single thread and once
+ * with several; the logs and the resulting trees must be identical. Programs are generated from
+ * fixed seeds.
+ */
+class ConsistencyTest {
+
+	private static final String[] PATHS = {
+			"a", "a/x.jar", "a/b", "a/b/y.jar", "a/b/z.cfg",
+			"c.jar",
+			"d", "d/e", "d/e/f.jar",
+	};
+
+	private static final String[] INITIAL = { "a/x.jar", "a/b/y.jar", "c.jar", "d/e/f.jar" };
+
+	private static final int ENTRIES = 8;
+
+	private static final int PROGRAMS = 200;
+
+	private static final int THREADS = 4;
+
+	@TempDir
+	Path scratch;
+
+	@Test
+	void concurrentUpdatesMatchSerialOnes() throws IOException, AbortException {
+		Path patch = scratch.resolve("patch.zip");
+		writePatch(patch);
+
+		try (Archive archive = Archive.open(patch)) {
+			for (int seed = 0; seed < PROGRAMS; ++seed) {
+				String program = generateProgram(new Random(seed));
+
+				String serial = apply(program, archive, scratch.resolve("serial"), 1);
+				String concurrent = apply(program, archive, scratch.resolve("concurrent"), THREADS);
+
+				assertEquals(serial, concurrent, "Program " + seed + ":\n" + program);
+			}
+		}
+	}
+
+	/**
+	 * Writes entries {@code e0}, {@code e1}, ... with distinct contents.
+	 */
+	private static void writePatch(Path file) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+			for (int i = 0; i < ENTRIES; ++i) {
+				zip.putNextEntry(new ZipEntry("e" + i));
+				zip.write(("entry " + i + "\n").getBytes());
+				zip.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Generates a program that mostly consists of instructions that are valid when run in program
+	 * order: files are not extracted over directories that contain files or into paths under files.
+	 * One in eight such invalid instructions is kept anyway, so that updates that fail are checked
+	 * too.
+	 */
+	private static String generateProgram(Random random) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("1\n1.0.0\n1.0.1\n");
+
+		Set<String> files = new HashSet<>(Arrays.asList(INITIAL));
+
+		int instructions = 4 + random.nextInt(20);
+		while (instructions > 0) {
+			String path = PATHS[random.nextInt(PATHS.length)];
+			boolean delete = random.nextInt(3) == 0;
+
+			boolean blocked = files.stream().anyMatch(file -> file.startsWith(path + "/") || path.startsWith(file + "/"));
+			if (blocked && random.nextInt(8) != 0) {
+				continue;
+			}
+
+			if (delete) {
+				sb.append("Delete; ").append(path);
+				files.remove(path);
+			} else {
+				sb.append("Extract; e").append(random.nextInt(ENTRIES)).append("; ").append(path);
+				files.add(path);
+			}
+
+			sb.append('\n');
+			instructions--;
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Applies a program to a fresh installation.
+	 * @return the log of the update, a note if the update failed and a description of the resulting
+	 * tree. Which exception a failed update ends with may differ, only the state it leaves behind
+	 * matters
+	 */
+	private static String apply(String text, Archive archive, Path root, int threads) throws IOException {
+		deleteRecursively(root);
+
+		for (String path : INITIAL) {
+			Path file = root.resolve(path);
+			Files.createDirectories(file.getParent());
+			Files.write(file, ("initial " + path + "\n").getBytes());
+		}
+
+		PrintStream original = System.out;
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(new TaskOutputStream(new PrintStream(log, true)), true));
+
+		String result = "";
+		try {
+			ActionUpdate.Program program = new ActionUpdate.Program(new StringReader(text), archive);
+
+			Transaction tx = new Transaction(root);
+			try {
+				program.run(tx, threads);
+			} catch (IOException | AbortException | RuntimeException e) {
+				tx.discard();
+				throw e;
+			}
+
+			tx.commit();
+		} catch (IOException | AbortException | RuntimeException e) {
+			result = "failed\n";
+		} finally {
+			System.setOut(original);
+		}
+
+		return log.toString().replace(System.lineSeparator(), "\n") + result + describe(root);
+	}
+
+	/**
+	 * @return every file and directory of the installation with the contents of the files, in
+	 * path order
+	 */
+	private static String describe(Path root) throws IOException {
+		Map<String, String> tree = new TreeMap<>();
+
+		try (Stream<Path> stream = Files.walk(root)) {
+			for (Path path : stream.collect(Collectors.toList())) {
+				Path relative = root.relativize(path);
+				if (relative.toString().isEmpty() || relative.getName(0).toString().startsWith(Main.SHORT_NAME)) {
+					continue;
+				}
+
+				tree.put(relative.toString().replace('\\', '/'),
+						Files.isDirectory(path) ? "directory" : new String(Files.readAllBytes(path)).trim());
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		tree.forEach((path, contents) -> sb.append("  ").append(path).append(": ").append(contents).append('\n'));
+		return sb.toString();
+	}
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		if (Files.notExists(dir)) return;
+
+		List<Path> paths;
+		try (Stream<Path> stream = Files.walk(dir)) {
+			paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toCollection(ArrayList::new));
+		}
+
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package ru.windcorp.piwcs.vsiau;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TransactionTest {
+
+	@TempDir
+	Path root;
+
+	private Path writeJournal(String text) throws IOException {
+		Path staging = root.resolve(Main.SHORT_NAME + "_staging");
+		Files.createDirectories(staging);
+		return Files.write(staging.resolve("journal"), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void recoverSkipsIncompleteLastRecord() throws IOException {
+		Path target = Files.write(root.resolve("a.jar"), "new".getBytes(StandardCharsets.UTF_8));
+		Path saved = root.resolve("saved.jar");
+		Path staging = writeJournal(
+				"move\t" + target + "\t" + saved + "\n"
+				+ "move\t" + saved).getParent();
+
+		// The first move was not performed either; rollback must leave the file alone
+		Transaction.recover(root);
+
+		assertEquals("new", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+		assertFalse(Files.exists(staging));
+	}
+
+	@Test
+	void recoverRollsBackCompleteRecords() throws IOException {
+		Path saved = Files.write(root.resolve("saved.jar"), "old".getBytes(StandardCharsets.UTF_8));
+		Path target = root.resolve("a.jar");
+		Path dir = Files.createDirectory(root.resolve("dir"));
+		writeJournal(
+				"move\t" + target + "\t" + saved + "\n"
+				+ "mkdir\t" + dir + "\n"
+				+ "mkd");
+
+		Transaction.recover(root);
+
+		assertEquals("old", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+		assertFalse(Files.exists(saved));
+		assertFalse(Files.exists(dir));
+	}
+
+	@Test
+	void recoverRejectsCorruptedRecord() throws IOException {
+		writeJournal("move\t" + root.resolve("a.jar") + "\n" + "committed\n");
+
+		IOException e = assertThrows(IOException.class, () -> Transaction.recover(root));
+		assertTrue(e.getMessage().startsWith("Corrupted journal"));
+	}
+
+}
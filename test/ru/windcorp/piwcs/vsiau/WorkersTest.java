@@ -0,0 +1,99 @@
+package ru.windcorp.piwcs.vsiau;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WorkersTest {
+
+	private PrintStream original;
+	private ByteArrayOutputStream log;
+
+	@BeforeEach
+	void captureOutput() {
+		original = System.out;
+		log = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(new TaskOutputStream(new PrintStream(log, true)), true));
+	}
+
+	@AfterEach
+	void restoreOutput() {
+		System.setOut(original);
+	}
+
+	/**
+	 * Tasks that finish in reverse order, each printing a line from its own thread and from a thread
+	 * it starts.
+	 */
+	private static List<Workers.Task> tasks(int count, int failing) {
+		List<Workers.Task> tasks = new ArrayList<>();
+		for (int i = 0; i < count; ++i) {
+			int index = i;
+			tasks.add(() -> {
+				try {
+					Thread.sleep(20 * (count - index));
+					Thread helper = new Thread(() -> System.out.println("  helper " + index));
+					helper.start();
+					helper.join();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+
+				System.out.println("  output " + index);
+				if (index == failing) throw new IOException("task " + index);
+			});
+		}
+		return tasks;
+	}
+
+	private static String expected(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			sb.append("task ").append(i).append('\n');
+			sb.append("  helper ").append(i).append('\n');
+			sb.append("  output ").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private String log() {
+		return log.toString().replace(System.lineSeparator(), "\n");
+	}
+
+	@Test
+	void parallelOutputFollowsDescription() throws IOException, AbortException {
+		Workers.run(Arrays.asList("task 0", "task 1", "task 2", "task 3"), tasks(4, -1), 4);
+		assertEquals(expected(4), log());
+	}
+
+	@Test
+	void parallelOutputMatchesSerial() throws IOException, AbortException {
+		List<String> descriptions = Arrays.asList("task 0", "task 1", "task 2");
+
+		Workers.run(descriptions, tasks(3, -1), 1);
+		String serial = log();
+		log.reset();
+
+		Workers.run(descriptions, tasks(3, -1), new int[] { 2, 0, 1 }, 3);
+		assertEquals(serial, log());
+	}
+
+	@Test
+	void failedTaskIsReportedWithItsOutput() {
+		List<String> descriptions = Arrays.asList("task 0", "task 1", "task 2");
+
+		assertThrows(IOException.class, () -> Workers.run(descriptions, tasks(3, 1), 3));
+		assertEquals(expected(2), log());
+	}
+
+}